@@ -0,0 +1,82 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Starting, looking up and culling link processes while many discord members run the link command at once
+ * <p>
+ *     Processes expire after a few milliseconds so that culling always has work to do and members keep getting new
+ *     codes. The rate limits are raised out of the way, since refusing a request would skip most of the work.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkProcessBenchmark
+{
+	static final int MEMBERS = 10000;
+	static final long TIMEOUT = 5;
+	
+	Member[] members;
+	
+	@Setup
+	public void setup()
+	{
+		LinkProcess.setLimits(Integer.MAX_VALUE, 1e12, Integer.MAX_VALUE, 1e12);
+		members = new Member[MEMBERS];
+		for (int index = 0; index < MEMBERS; index++)
+			members[index] = Stubs.member(100000000000000000L + index, List.of());
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		Thread.sleep(TIMEOUT);
+		LinkProcess.cull();
+	}
+	
+	private Member randomMember()
+	{
+		return members[ThreadLocalRandom.current().nextInt(MEMBERS)];
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public LinkProcess begin()
+	{
+		return LinkProcess.begin(null, randomMember(), TIMEOUT);
+	}
+	
+	@Benchmark
+	@Group("link")
+	@GroupThreads(3)
+	public LinkProcess linkBegin()
+	{
+		return LinkProcess.begin(null, randomMember(), TIMEOUT);
+	}
+	
+	@Benchmark
+	@Group("link")
+	@GroupThreads(4)
+	public LinkProcess linkLookup()
+	{
+		return LinkProcess.getProcess(ThreadLocalRandom.current().nextInt(LinkProcess.MIN_CODE, LinkProcess.MAX_CODE));
+	}
+	
+	@Benchmark
+	@Group("link")
+	@GroupThreads(1)
+	public void linkCull(Blackhole blackhole)
+	{
+		LinkProcess.cull();
+		blackhole.consume(LinkProcess.activeCount());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,502 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import org.bukkit.entity.*;
+import org.bukkit.event.player.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Runs the plugin against simulated discord, LuckPerms and Bukkit backends and reports how it holds up under load
+ * <p>
+ *     The plugin is loaded and enabled as a server would, then driven through three scenarios:
+ * </p>
+ * <ul>
+ *     <li>join: every simulated player joins at the configured rate, each linked player's groups are synced</li>
+ *     <li>link: unlinked players run /link-account in discord and then in minecraft</li>
+ *     <li>storm: moderators change the discord roles of many linked players at once</li>
+ * </ul>
+ * <p>
+ *     For each scenario it reports how long the main thread was held up per join or command, how many players were
+ *     brought in line with discord per second, and how long that took from start to finish. Options are given as
+ *     {@code --name value}, see {@link Options} for the defaults:
+ * </p>
+ * <pre>
+ *     java -cp benchmarks/target/benchmarks.jar discordSync.LoadSimulator --players 5000 --latency 80 --rate-limit 0.05
+ * </pre>
+ */
+public class LoadSimulator
+{
+	static final String NOT_LINKED_MESSAGE = "You need to link your minecraft and discord accounts";
+	
+	final Options options;
+	final SimulatedDiscord discord;
+	final SimulatedLuckPerms luckPerms;
+	final SimulatedServer server;
+	final ArrayList<SimulatedPlayer> players = new ArrayList<>();
+	volatile Scenario scenario;
+	DiscordSync plugin;
+	
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new Options(args);
+		LoadSimulator simulator = new LoadSimulator(options);
+		try
+		{
+			simulator.run();
+		}
+		finally
+		{
+			simulator.shutdown();
+		}
+		//some of the plugin's threads don't stop until the JVM exits
+		System.exit(0);
+	}
+	
+	LoadSimulator(Options options) throws Exception
+	{
+		this.options = options;
+		//the guild has as many unmapped roles as mapped ones, the same as most servers
+		discord = new SimulatedDiscord(options.roles * 2, options.latency, options.jitter, options.rateLimit, options.retryAfter);
+		luckPerms = new SimulatedLuckPerms(options.luckPermsLatency);
+		luckPerms.saveListener = (minecraftUUID, groups) ->
+		{
+			Scenario scenario = this.scenario;
+			if (scenario != null)
+				scenario.saved(minecraftUUID, groups);
+		};
+		luckPerms.register();
+		server = new SimulatedServer();
+	}
+	
+	void run() throws Exception
+	{
+		File dataFolder = Files.createTempDirectory("discordsync-simulation").resolve("DiscordSync").toFile();
+		dataFolder.mkdirs();
+		writeConfig(dataFolder);
+		System.out.println("Simulating " + options.players + " players with data in " + dataFolder);
+		
+		plugin = server.load(dataFolder);
+		plugin.bot().connector = discord.connector();
+		long startTime = System.nanoTime();
+		server.setEnabled(plugin, true);
+		plugin.bot().ready().get(30, TimeUnit.SECONDS);
+		System.out.printf("Plugin enabled and bot ready in %.1f ms%n", (System.nanoTime() - startTime) / 1e6);
+		
+		createPlayers();
+		join();
+		link();
+		storm();
+		
+		System.out.println();
+		System.out.println("== overall ==");
+		System.out.println("main thread tasks scheduled by the plugin: " + server.scheduledTaskTimes.describe());
+		System.out.println("discord requests: " + discord.requests.sum() + " (" + discord.rateLimited.sum() + " rate limited)");
+		System.out.println();
+		for (String line : plugin.metrics().summary())
+			System.out.println(line.replaceAll("§.", ""));
+	}
+	
+	private void writeConfig(File dataFolder) throws IOException
+	{
+		//anything not set here falls back to the defaults in the plugin's own config.yml
+		StringBuilder config = new StringBuilder();
+		config.append("discord-bot:\n  token: \"simulated\"\n  guild-id: ").append(SimulatedDiscord.GUILD_ID).append('\n');
+		//the simulation is about throughput, so take the link rate limits out of the way
+		config.append("link-limits:\n  member-burst: 1000\n  member-per-minute: 1000\n  global-burst: 1000000\n  global-per-minute: 1000000\n");
+		config.append("user-store:\n  type: ").append(options.userStore).append('\n');
+		config.append("offline-reconcile:\n  enabled: false\n");
+		config.append("roles:\n");
+		for (int index = 0; index < options.roles; index++)
+			config.append("  role").append(index).append(":\n    discord-role-id: ").append(SimulatedDiscord.FIRST_ROLE_ID + index).append("\n    luck-perms-group-name: \"group").append(index).append("\"\n");
+		Files.writeString(new File(dataFolder, "config.yml").toPath(), config.toString(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Creates every simulated player and their discord account, and stores the links for those who are already linked
+	 */
+	private void createPlayers()
+	{
+		Random random = new Random(options.seed);
+		ArrayList<UserRecord> records = new ArrayList<>();
+		int linkedCount = (int)Math.round(options.players * options.linked);
+		for (int index = 0; index < options.players; index++)
+		{
+			UUID minecraftUUID = new UUID(random.nextLong(), random.nextLong());
+			String name = "Player" + index;
+			long discordID = 100000000000000000L + index;
+			
+			//everyone has at least one synced role and one discord-only role
+			List<net.dv8tion.jda.api.entities.Role> roles = new ArrayList<>();
+			int mappedRoles = 1 + random.nextInt(Math.max(1, options.memberRoles));
+			while (roles.size() < Math.min(mappedRoles, options.roles))
+			{
+				net.dv8tion.jda.api.entities.Role role = discord.roles.get(random.nextInt(options.roles));
+				if (!roles.contains(role))
+					roles.add(role);
+			}
+			roles.add(discord.roles.get(options.roles + random.nextInt(options.roles)));
+			discord.addMember(discordID, name, roles);
+			
+			SimulatedPlayer player = new SimulatedPlayer(minecraftUUID, name, discordID, index < linkedCount);
+			players.add(player);
+			if (player.linked)
+			{
+				records.add(new UserRecord(minecraftUUID, discordID, name));
+				plugin.userIndex().update(minecraftUUID, name, discordID);
+			}
+		}
+		plugin.userStore().saveAll(records);
+	}
+	
+	/**
+	 * Gets the groups a player should end up with, from their current discord roles
+	 * @param discordID
+	 * @return
+	 */
+	private Set<String> expectedGroups(long discordID)
+	{
+		return expectedGroups(discord.rolesOf(discordID));
+	}
+	
+	/**
+	 * Gets the groups a player with the given discord roles should end up with
+	 * @param roles
+	 * @return
+	 */
+	private Set<String> expectedGroups(Collection<net.dv8tion.jda.api.entities.Role> roles)
+	{
+		HashSet<String> groups = new HashSet<>();
+		for (net.dv8tion.jda.api.entities.Role role : roles)
+		{
+			long index = role.getIdLong() - SimulatedDiscord.FIRST_ROLE_ID;
+			if (index < options.roles)
+				groups.add("group" + index);
+		}
+		return groups;
+	}
+	
+	private void join() throws Exception
+	{
+		Scenario scenario = begin("join", options.players + " players, " + players.stream().filter(player -> player.linked).count() + " linked, " + options.joinRate + " joins/s");
+		Pacer pacer = new Pacer(options.joinRate);
+		for (SimulatedPlayer player : players)
+		{
+			pacer.await();
+			scenario.expect(player.minecraftUUID, player.linked ? expectedGroups(player.discordID) : null);
+			luckPerms.login(player.minecraftUUID);
+			server.onlinePlayers.put(player.minecraftUUID, player.player);
+			PlayerJoinEvent event = new PlayerJoinEvent(player.player, player.name + " joined the game");
+			scenario.mainThread.add(server.timeOnMainThread(() -> server.callEvent(event)));
+		}
+		scenario.finish("main thread per join");
+	}
+	
+	private void link() throws Exception
+	{
+		List<SimulatedPlayer> unlinked = players.stream().filter(player -> !player.linked).limit(options.links).toList();
+		Scenario scenario = begin("link", unlinked.size() + " players, " + options.joinRate + " links/s");
+		Pacer pacer = new Pacer(options.joinRate);
+		int refused = 0;
+		for (SimulatedPlayer player : unlinked)
+		{
+			pacer.await();
+			//what the discord /link-account command does, off the main thread
+			LinkProcess process = LinkProcess.begin(plugin, discord.members.get(player.discordID).member);
+			if (process == null)
+			{
+				refused++;
+				continue;
+			}
+			scenario.expect(player.minecraftUUID, expectedGroups(player.discordID));
+			String[] args = {Integer.toString(process.getConfirmationCode())};
+			scenario.mainThread.add(server.timeOnMainThread(() -> server.commands.get("link-account").execute(player.player, "link-account", args)));
+			player.linked = true;
+		}
+		if (refused > 0)
+			System.out.println(refused + " link processes were refused by the rate limits");
+		scenario.finish("main thread per /link-account");
+	}
+	
+	private void storm() throws Exception
+	{
+		Random random = new Random(options.seed + 1);
+		List<SimulatedPlayer> linked = players.stream().filter(player -> player.linked).limit(options.storm).toList();
+		Scenario scenario = begin("storm", linked.size() + " members, " + options.stormEvents + " role changes each");
+		for (SimulatedPlayer player : linked)
+		{
+			//take away one synced role, then hand out new ones one at a time, as a moderator clicking through them would
+			List<net.dv8tion.jda.api.entities.Role> current = discord.rolesOf(player.discordID);
+			ArrayList<List<net.dv8tion.jda.api.entities.Role>> additions = new ArrayList<>();
+			List<net.dv8tion.jda.api.entities.Role> removal = current.stream().filter(role -> role.getIdLong() - SimulatedDiscord.FIRST_ROLE_ID < options.roles).limit(1).toList();
+			HashSet<net.dv8tion.jda.api.entities.Role> planned = new HashSet<>(current);
+			planned.removeAll(removal);
+			for (int event = 1; event < options.stormEvents && planned.size() < options.roles; event++)
+			{
+				net.dv8tion.jda.api.entities.Role role;
+				do
+					role = discord.roles.get(random.nextInt(options.roles));
+				while (planned.contains(role) || removal.contains(role));
+				planned.add(role);
+				additions.add(List.of(role));
+			}
+			
+			//expected before the first change goes out, so a sync that finishes quickly isn't missed
+			scenario.expect(player.minecraftUUID, expectedGroups(planned));
+			discord.changeRoles(player.discordID, List.of(), removal);
+			for (List<net.dv8tion.jda.api.entities.Role> addition : additions)
+				discord.changeRoles(player.discordID, addition, List.of());
+		}
+		scenario.finish(null);
+	}
+	
+	private Scenario begin(String name, String description)
+	{
+		System.out.println();
+		System.out.println("== " + name + ": " + description + " ==");
+		Scenario scenario = new Scenario();
+		this.scenario = scenario;
+		return scenario;
+	}
+	
+	void shutdown() throws Exception
+	{
+		if (plugin != null && plugin.isEnabled())
+			server.setEnabled(plugin, false);
+		luckPerms.unregister();
+		discord.shutdown();
+		server.shutdown();
+	}
+	
+	/**
+	 * Tracks the players a scenario is waiting on, and how long each one took
+	 */
+	class Scenario
+	{
+		final long startTime = System.nanoTime();
+		final ConcurrentHashMap<UUID, Pending> pending = new ConcurrentHashMap<>();
+		final Samples mainThread = new Samples();
+		final Samples latency = new Samples();
+		volatile long lastCompletion = startTime;
+		int expected = 0;
+		
+		/**
+		 * Starts waiting for a player to be brought in line with discord
+		 * @param minecraftUUID
+		 * @param groups the groups they should end up with, or null if they should be told to link their accounts
+		 */
+		void expect(UUID minecraftUUID, Set<String> groups)
+		{
+			expected++;
+			pending.put(minecraftUUID, new Pending(System.nanoTime(), groups));
+			//already in line with discord, nothing will be saved
+			if (groups != null && groups.equals(luckPerms.groups(minecraftUUID)) && pending.remove(minecraftUUID) != null)
+				expected--;
+		}
+		
+		void saved(UUID minecraftUUID, Set<String> groups)
+		{
+			Pending entry = pending.get(minecraftUUID);
+			if (entry != null && groups.equals(entry.groups) && pending.remove(minecraftUUID, entry))
+				completed(entry);
+		}
+		
+		void messaged(UUID minecraftUUID, String message)
+		{
+			Pending entry = pending.get(minecraftUUID);
+			if (entry != null && entry.groups == null && message.contains(NOT_LINKED_MESSAGE) && pending.remove(minecraftUUID, entry))
+				completed(entry);
+		}
+		
+		private void completed(Pending entry)
+		{
+			long now = System.nanoTime();
+			latency.add(now - entry.startTime);
+			lastCompletion = now;
+		}
+		
+		/**
+		 * Waits for every player to be done, or for the timeout, then prints the results
+		 * @param mainThreadLabel what the main thread samples measure, null if there are none
+		 */
+		void finish(String mainThreadLabel) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.timeout);
+			while (!pending.isEmpty() && System.nanoTime() - deadline < 0)
+				Thread.sleep(10);
+			
+			if (mainThreadLabel != null)
+				System.out.println(mainThreadLabel + ": " + mainThread.describe());
+			double seconds = (lastCompletion - startTime) / 1e9;
+			System.out.printf("completed %d of %d in %.2f s (%.1f per second)%n", latency.size(), expected, seconds, seconds > 0 ? latency.size() / seconds : 0);
+			System.out.println("until in line with discord: " + latency.describe());
+			if (!pending.isEmpty())
+				System.out.println(pending.size() + " players were still waiting after " + options.timeout + " s");
+		}
+	}
+	
+	record Pending(long startTime, Set<String> groups)
+	{
+		
+	}
+	
+	/**
+	 * A simulated player and their discord account
+	 */
+	class SimulatedPlayer
+	{
+		final UUID minecraftUUID;
+		final String name;
+		final long discordID;
+		final Player player;
+		volatile boolean linked;
+		
+		SimulatedPlayer(UUID minecraftUUID, String name, long discordID, boolean linked)
+		{
+			this.minecraftUUID = minecraftUUID;
+			this.name = name;
+			this.discordID = discordID;
+			this.linked = linked;
+			player = server.createPlayer(minecraftUUID, name, message ->
+			{
+				Scenario scenario = LoadSimulator.this.scenario;
+				if (scenario != null)
+					scenario.messaged(minecraftUUID, message);
+			});
+		}
+	}
+	
+	/**
+	 * Spaces out work to a fixed rate
+	 */
+	static class Pacer
+	{
+		final long interval;
+		long next = System.nanoTime();
+		
+		Pacer(double perSecond)
+		{
+			interval = (long)(TimeUnit.SECONDS.toNanos(1) / Math.max(0.001, perSecond));
+		}
+		
+		void await()
+		{
+			long wait = next - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			next += interval;
+		}
+	}
+	
+	/**
+	 * A set of timings in nanoseconds that percentiles can be taken from
+	 */
+	static class Samples
+	{
+		long[] values = new long[1024];
+		int size = 0;
+		
+		synchronized void add(long value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+		
+		synchronized int size()
+		{
+			return size;
+		}
+		
+		/**
+		 * Describes the timings in milliseconds
+		 * @return
+		 */
+		synchronized String describe()
+		{
+			if (size == 0)
+				return "none";
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			long total = 0;
+			for (long value : sorted)
+				total += value;
+			return String.format("%d samples, avg %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms", size, total / 1e6 / size, percentile(sorted, 0.5),
+								 percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[size - 1] / 1e6);
+		}
+		
+		private static double percentile(long[] sorted, double percentile)
+		{
+			return sorted[Math.max(0, (int)Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+		}
+	}
+	
+	/**
+	 * The simulation's settings
+	 */
+	static class Options
+	{
+		//number of simulated players
+		int players = 1000;
+		//share of players whose accounts are already linked
+		double linked = 0.8;
+		//players joining, and links being made, per second
+		double joinRate = 200;
+		//number of roles mapped to groups, the guild has as many again that aren't
+		int roles = 20;
+		//most synced roles a member starts with
+		int memberRoles = 3;
+		//time in milliseconds each discord REST call takes, plus up to the jitter at random
+		long latency = 50;
+		long jitter = 25;
+		//share of discord REST calls that are rate limited, and how long they are held up for in milliseconds
+		double rateLimit = 0.02;
+		long retryAfter = 1000;
+		//time in milliseconds LuckPerms takes to load or save a user
+		long luckPermsLatency = 5;
+		//number of unlinked players who go through /link-account
+		int links = 200;
+		//number of linked players whose roles change at once, and how many changes each
+		int storm = 500;
+		int stormEvents = 3;
+		String userStore = "yaml";
+		//time in seconds to wait for each scenario to finish
+		long timeout = 120;
+		long seed = 1;
+		
+		Options(String[] args)
+		{
+			for (int index = 0; index + 1 < args.length; index += 2)
+			{
+				String value = args[index + 1];
+				switch (args[index])
+				{
+					case "--players" -> players = Integer.parseInt(value);
+					case "--linked" -> linked = Double.parseDouble(value);
+					case "--join-rate" -> joinRate = Double.parseDouble(value);
+					case "--roles" -> roles = Integer.parseInt(value);
+					case "--member-roles" -> memberRoles = Integer.parseInt(value);
+					case "--latency" -> latency = Long.parseLong(value);
+					case "--jitter" -> jitter = Long.parseLong(value);
+					case "--rate-limit" -> rateLimit = Double.parseDouble(value);
+					case "--retry-after" -> retryAfter = Long.parseLong(value);
+					case "--luck-perms-latency" -> luckPermsLatency = Long.parseLong(value);
+					case "--links" -> links = Integer.parseInt(value);
+					case "--storm" -> storm = Integer.parseInt(value);
+					case "--storm-events" -> stormEvents = Integer.parseInt(value);
+					case "--user-store" -> userStore = value;
+					case "--timeout" -> timeout = Long.parseLong(value);
+					case "--seed" -> seed = Long.parseLong(value);
+					default -> throw new IllegalArgumentException("Unknown option " + args[index]);
+				}
+			}
+			if (args.length % 2 != 0)
+				throw new IllegalArgumentException("Missing a value for " + args[args.length - 1]);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,88 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Working out the LuckPerms group changes for a sync, from a member's discord roles and a user's current groups
+ * <p>
+ *     This is the part of {@link User#sync()} that runs for every player, whether or not anything changes. Discord and
+ *     LuckPerms are replaced with stubs so only the plugin's own work is measured.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleDiffBenchmark
+{
+	static final int MAPPED_ROLES = 100;
+	
+	//how many discord roles the member has, only some of which are synced
+	@Param({"5", "25", "100"})
+	int memberRoles;
+	
+	Member member;
+	net.luckperms.api.model.user.User inSyncUser;
+	net.luckperms.api.model.user.User outOfSyncUser;
+	
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(memberRoles);
+		ArrayList<Role> roles = new ArrayList<>();
+		for (int index = 0; index < MAPPED_ROLES; index++)
+			roles.add(new Role(null, "role" + index, 200000000000000000L + index, "group" + index));
+		Role.registry = new RoleRegistry(roles);
+		
+		//a quarter of the member's roles are synced, the rest are discord-only roles
+		ArrayList<net.dv8tion.jda.api.entities.Role> discordRoles = new ArrayList<>();
+		ArrayList<String> groups = new ArrayList<>();
+		for (int index = 0; index < memberRoles; index++)
+		{
+			if (index % 4 == 0)
+			{
+				Role role = roles.get(random.nextInt(MAPPED_ROLES));
+				discordRoles.add(Stubs.discordRole(role.discordRoleID));
+				groups.add(role.luckPermsGroupName);
+			}
+			else
+				discordRoles.add(Stubs.discordRole(300000000000000000L + index));
+		}
+		member = Stubs.member(100000000000000000L, discordRoles);
+		
+		//users usually have a few groups that aren't synced at all
+		groups.add("default");
+		groups.add("builder");
+		inSyncUser = Stubs.luckPermsUser(groups);
+		
+		//one synced group to take away and one to give back
+		ArrayList<String> outOfSyncGroups = new ArrayList<>(groups);
+		outOfSyncGroups.remove(0);
+		outOfSyncGroups.add(roles.get(MAPPED_ROLES - 1).luckPermsGroupName);
+		outOfSyncUser = Stubs.luckPermsUser(outOfSyncGroups);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		Role.registry = RoleRegistry.EMPTY;
+	}
+	
+	@Benchmark
+	public RoleDiff inSync()
+	{
+		return RoleDiff.compute(member, inSyncUser);
+	}
+	
+	@Benchmark
+	public RoleDiff outOfSync()
+	{
+		return RoleDiff.compute(member, outOfSyncUser);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package discordSync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Looking up roles by discord role ID and by LuckPerms group on large role lists
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleLookupBenchmark
+{
+	static final int LOOKUPS = 4096;
+	
+	@Param({"10", "100", "1000", "10000"})
+	int roles;
+	
+	long[] discordRoleIDs;
+	long[] unmappedRoleIDs;
+	String[] groups;
+	int next = 0;
+	
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(roles);
+		ArrayList<Role> roleList = new ArrayList<>();
+		for (int index = 0; index < roles; index++)
+			roleList.add(new Role(null, "role" + index, 200000000000000000L + random.nextInt(Integer.MAX_VALUE), "Group" + index));
+		Role.registry = new RoleRegistry(roleList);
+		
+		discordRoleIDs = new long[LOOKUPS];
+		unmappedRoleIDs = new long[LOOKUPS];
+		groups = new String[LOOKUPS];
+		for (int lookup = 0; lookup < LOOKUPS; lookup++)
+		{
+			Role role = roleList.get(random.nextInt(roles));
+			discordRoleIDs[lookup] = role.discordRoleID;
+			//most of a member's discord roles usually aren't synced, so misses matter as much as hits
+			unmappedRoleIDs[lookup] = 300000000000000000L + random.nextInt(Integer.MAX_VALUE);
+			groups[lookup] = role.luckPermsGroupName.toLowerCase(Locale.ROOT);
+		}
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		Role.registry = RoleRegistry.EMPTY;
+	}
+	
+	@Benchmark
+	public Role getRoleByID()
+	{
+		return Role.getRoleByID(discordRoleIDs[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public Role getRoleByUnmappedID()
+	{
+		return Role.getRoleByID(unmappedRoleIDs[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public Role getRoleByGroup()
+	{
+		return Role.getRoleByGroup(groups[next++ & (LOOKUPS - 1)]);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,417 @@
+package discordSync;
+
+import net.dv8tion.jda.api.*;
+import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.entities.channel.concrete.*;
+import net.dv8tion.jda.api.events.*;
+import net.dv8tion.jda.api.events.guild.member.*;
+import net.dv8tion.jda.api.requests.*;
+import net.dv8tion.jda.api.requests.restaction.*;
+import net.dv8tion.jda.api.requests.restaction.interactions.*;
+import net.dv8tion.jda.api.utils.concurrent.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * An in-process stand-in for the discord guild the plugin syncs with
+ * <p>
+ *     Only the parts of JDA the plugin uses are answered. Every REST call waits for the configured latency, and a share
+ *     of them are treated as having hit a rate limit, which holds the call up for the retry-after time the same way JDA
+ *     does before sending it again. Gateway events are delivered one at a time on a single thread, as JDA does.
+ * </p>
+ * <p>
+ *     JDA's ready and HTTP request events can only be constructed by JDA's own implementation, so the bot is told it is
+ *     ready, and about each request attempt including the rate limited ones, through the bot's own hooks instead.
+ * </p>
+ * <p>
+ *     As with the plugin's default JDA cache policy, members aren't cached. Each lookup returns a new copy of the member
+ *     and role changes arrive only as member update events, not the role add and remove events.
+ * </p>
+ */
+class SimulatedDiscord
+{
+	static final long GUILD_ID = 1;
+	static final long APPLICATION_ID = 2;
+	static final long FIRST_ROLE_ID = 1000;
+	
+	final long latencyMillis;
+	final long jitterMillis;
+	final double rateLimitChance;
+	final long retryAfterMillis;
+	final JDA jda;
+	final Guild guild;
+	final List<net.dv8tion.jda.api.entities.Role> roles;
+	final Map<Long, net.dv8tion.jda.api.entities.Role> rolesByID = new HashMap<>();
+	final ConcurrentHashMap<Long, SimulatedMember> members = new ConcurrentHashMap<>();
+	final ExecutorService requester = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Simulated-Discord-", 0).factory());
+	final ExecutorService gateway = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Simulated-Gateway"));
+	final AtomicLong responseNumber = new AtomicLong();
+	final LongAdder requests = new LongAdder();
+	final LongAdder rateLimited = new LongAdder();
+	volatile Object[] listeners = new Object[0];
+	
+	/**
+	 * @param roleCount number of roles in the guild
+	 * @param latencyMillis time each REST call takes
+	 * @param jitterMillis up to this much extra time is added to each call at random
+	 * @param rateLimitChance share of REST calls that hit a rate limit, from 0 to 1
+	 * @param retryAfterMillis how long a rate limited call is held up for
+	 */
+	SimulatedDiscord(int roleCount, long latencyMillis, long jitterMillis, double rateLimitChance, long retryAfterMillis)
+	{
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.rateLimitChance = rateLimitChance;
+		this.retryAfterMillis = retryAfterMillis;
+		jda = Stubs.stub(JDA.class, (method, args) -> switch (method.getName())
+		{
+			case "getGuildById" -> args[0].toString().equals(Long.toString(GUILD_ID)) ? guild() : null;
+			case "getGuilds" -> List.of(guild());
+			case "getSelfUser" -> Stubs.stub(SelfUser.class, (selfMethod, selfArgs) -> switch (selfMethod.getName())
+			{
+				case "getIdLong", "getApplicationIdLong" -> APPLICATION_ID;
+				case "getName", "getEffectiveName" -> "DiscordSync";
+				default -> Stubs.unsupported(selfMethod);
+			});
+			case "updateCommands" -> action(CommandListUpdateAction.class, List::of);
+			case "getStatus" -> JDA.Status.CONNECTED;
+			case "getResponseTotal" -> responseNumber.get();
+			case "shutdown", "shutdownNow" -> null;
+			case "awaitShutdown" -> true;
+			default -> Stubs.unsupported(method);
+		});
+		guild = Stubs.stub(Guild.class, (method, args) -> switch (method.getName())
+		{
+			case "getIdLong" -> GUILD_ID;
+			case "getId" -> Long.toString(GUILD_ID);
+			case "getName" -> "Simulated Guild";
+			case "getJDA" -> jda;
+			case "getRoles" -> roles();
+			case "getRoleById" -> rolesByID.get(Long.parseLong(args[0].toString()));
+			case "getMemberById" -> memberOrNull(Long.parseLong(args[0].toString()));
+			//discord would answer an unknown member with an error, the plugin only asks for members that exist
+			case "retrieveMemberById" -> action(CacheRestAction.class, () -> memberOrNull(Long.parseLong(args[0].toString())));
+			case "retrieveMembersByIds" -> action(Task.class, () -> retrieveMembers(args[0]));
+			case "modifyMemberRoles" -> action(AuditableRestAction.class, () ->
+			{
+				modifyRoles((Member)args[0], asRoles(args[1]), asRoles(args[2]));
+				return null;
+			});
+			default -> Stubs.unsupported(method);
+		});
+		ArrayList<net.dv8tion.jda.api.entities.Role> roles = new ArrayList<>();
+		for (int index = 0; index < roleCount; index++)
+		{
+			long roleID = FIRST_ROLE_ID + index;
+			String name = "role" + index;
+			net.dv8tion.jda.api.entities.Role role = Stubs.stub(net.dv8tion.jda.api.entities.Role.class, (method, args) -> switch (method.getName())
+			{
+				case "getIdLong" -> roleID;
+				case "getId" -> Long.toString(roleID);
+				case "getName" -> name;
+				case "getAsMention" -> "<@&" + roleID + ">";
+				case "getGuild" -> guild;
+				case "getJDA" -> jda;
+				default -> Stubs.unsupported(method);
+			});
+			roles.add(role);
+			rolesByID.put(roleID, role);
+		}
+		this.roles = List.copyOf(roles);
+	}
+	
+	private Guild guild()
+	{
+		return guild;
+	}
+	
+	private List<net.dv8tion.jda.api.entities.Role> roles()
+	{
+		return roles;
+	}
+	
+	/**
+	 * Gets the stand-in the bot should log in with
+	 * @return
+	 */
+	DiscordBot.Connector connector()
+	{
+		return (token, listeners) ->
+		{
+			this.listeners = listeners;
+			//logging in and receiving the guilds takes a couple of round trips
+			requester.execute(() ->
+			{
+				try
+				{
+					request(() -> null);
+					request(() -> null);
+				}
+				catch (Exception ignored)
+				{
+					
+				}
+				gateway.execute(() ->
+				{
+					for (Object listener : listeners)
+						if (listener instanceof DiscordBot.ReadyListener readyListener)
+							readyListener.ready(jda);
+				});
+			});
+			return jda;
+		};
+	}
+	
+	/**
+	 * Adds a member to the guild with the given roles
+	 * @param discordID
+	 * @param name
+	 * @param roles
+	 * @return
+	 */
+	Member addMember(long discordID, String name, Collection<net.dv8tion.jda.api.entities.Role> roles)
+	{
+		SimulatedMember member = new SimulatedMember(discordID, name, roles);
+		members.put(discordID, member);
+		return member.member;
+	}
+	
+	/**
+	 * Gets the roles a member currently has
+	 * @param discordID
+	 * @return
+	 */
+	List<net.dv8tion.jda.api.entities.Role> rolesOf(long discordID)
+	{
+		return members.get(discordID).roles;
+	}
+	
+	/**
+	 * Changes a member's roles the way a moderator would in the discord client, sending the gateway events for it
+	 * @param discordID
+	 * @param added
+	 * @param removed
+	 */
+	void changeRoles(long discordID, Collection<net.dv8tion.jda.api.entities.Role> added, Collection<net.dv8tion.jda.api.entities.Role> removed)
+	{
+		modifyRoles(members.get(discordID).member, added, removed);
+	}
+	
+	private void modifyRoles(Member member, Collection<net.dv8tion.jda.api.entities.Role> added, Collection<net.dv8tion.jda.api.entities.Role> removed)
+	{
+		SimulatedMember simulated = members.get(member.getIdLong());
+		List<net.dv8tion.jda.api.entities.Role> actuallyAdded;
+		List<net.dv8tion.jda.api.entities.Role> actuallyRemoved;
+		synchronized (simulated)
+		{
+			LinkedHashSet<net.dv8tion.jda.api.entities.Role> roles = new LinkedHashSet<>(simulated.roles);
+			actuallyAdded = added.stream().filter(roles::add).toList();
+			actuallyRemoved = removed.stream().filter(roles::remove).toList();
+			simulated.roles = List.copyOf(roles);
+		}
+		if (!actuallyAdded.isEmpty() || !actuallyRemoved.isEmpty())
+			fire(new GuildMemberUpdateEvent(jda, responseNumber.incrementAndGet(), simulated.copy()));
+	}
+	
+	private Member memberOrNull(long discordID)
+	{
+		SimulatedMember member = members.get(discordID);
+		return member == null ? null : member.copy();
+	}
+	
+	private List<Member> retrieveMembers(Object ids)
+	{
+		ArrayList<Member> found = new ArrayList<>();
+		for (Object id : (Collection<?>)ids)
+		{
+			Member member = memberOrNull(Long.parseLong(id.toString()));
+			if (member != null)
+				found.add(member);
+		}
+		return found;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Collection<net.dv8tion.jda.api.entities.Role> asRoles(Object roles)
+	{
+		return roles == null ? List.of() : (Collection<net.dv8tion.jda.api.entities.Role>)roles;
+	}
+	
+	/**
+	 * Delivers a gateway event to the bot's listeners
+	 * @param event
+	 */
+	void fire(GenericEvent event)
+	{
+		gateway.execute(() ->
+		{
+			for (Object listener : listeners)
+				((net.dv8tion.jda.api.hooks.EventListener)listener).onEvent(event);
+		});
+	}
+	
+	/**
+	 * Tells the bot about a request attempt on the calling thread, the way JDA reports its REST requests
+	 * @param rateLimited
+	 */
+	private void requestMade(boolean rateLimited)
+	{
+		for (Object listener : listeners)
+			if (listener instanceof DiscordBot bot)
+				bot.requestMade(rateLimited);
+	}
+	
+	/**
+	 * Performs a REST call, waiting for the simulated latency and any rate limit first
+	 * @param result
+	 * @return
+	 * @param <T>
+	 */
+	<T> T request(Callable<T> result) throws Exception
+	{
+		long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+		requests.increment();
+		if (ThreadLocalRandom.current().nextDouble() < rateLimitChance)
+		{
+			//JDA tells its listeners about the 429, waits out the retry-after and sends the request again
+			rateLimited.increment();
+			Thread.sleep(delay);
+			requestMade(true);
+			delay = retryAfterMillis + latencyMillis;
+		}
+		Thread.sleep(delay);
+		T value = result.call();
+		requestMade(false);
+		return value;
+	}
+	
+	/**
+	 * Creates a REST action whose result is produced after the simulated latency
+	 * @param type
+	 * @param result
+	 * @return
+	 * @param <A>
+	 */
+	@SuppressWarnings("unchecked")
+	<A> A action(Class<A> type, Callable<?> result)
+	{
+		return Stubs.stub(type, (method, args) -> switch (method.getName())
+		{
+			case "complete", "get" -> request(result);
+			case "queue" ->
+			{
+				Consumer<Object> success = args != null && args.length > 0 ? (Consumer<Object>)args[0] : null;
+				Consumer<Throwable> failure = args != null && args.length > 1 ? (Consumer<Throwable>)args[1] : null;
+				requester.execute(() ->
+				{
+					Object value;
+					try
+					{
+						value = request(result);
+					}
+					catch (Throwable exception)
+					{
+						if (failure != null)
+							failure.accept(exception);
+						return;
+					}
+					if (success != null)
+						success.accept(value);
+				});
+				yield null;
+			}
+			case "submit" -> CompletableFuture.supplyAsync(() ->
+			{
+				try
+				{
+					return request(result);
+				}
+				catch (Exception exception)
+				{
+					throw new CompletionException(exception);
+				}
+			}, requester);
+			case "onSuccess" -> action(type, () ->
+			{
+				Object value = result.call();
+				((Consumer<Object>)args[0]).accept(value);
+				return value;
+			});
+			case "reason", "addCheck", "setCheck", "timeout", "deadline", "addCommands", "setEphemeral" -> action(type, result);
+			case "getJDA" -> jda;
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	/**
+	 * Stops the simulated discord threads
+	 */
+	void shutdown()
+	{
+		requester.shutdownNow();
+		gateway.shutdownNow();
+	}
+	
+	/**
+	 * A guild member whose roles can be changed during the simulation
+	 */
+	class SimulatedMember
+	{
+		final long discordID;
+		final String name;
+		final Member member;
+		final net.dv8tion.jda.api.entities.User user;
+		volatile List<net.dv8tion.jda.api.entities.Role> roles;
+		
+		SimulatedMember(long discordID, String name, Collection<net.dv8tion.jda.api.entities.Role> roles)
+		{
+			this.discordID = discordID;
+			this.name = name;
+			this.roles = List.copyOf(roles);
+			PrivateChannel privateChannel = Stubs.stub(PrivateChannel.class, (method, args) -> switch (method.getName())
+			{
+				case "sendMessage" -> action(MessageCreateAction.class, () -> null);
+				default -> Stubs.unsupported(method);
+			});
+			user = Stubs.stub(net.dv8tion.jda.api.entities.User.class, (method, args) -> switch (method.getName())
+			{
+				case "getIdLong" -> discordID;
+				case "getId" -> Long.toString(discordID);
+				case "getName", "getEffectiveName" -> name;
+				case "getAsMention" -> "<@" + discordID + ">";
+				case "openPrivateChannel" -> action(CacheRestAction.class, () -> privateChannel);
+				default -> Stubs.unsupported(method);
+			});
+			member = member(() -> this.roles);
+		}
+		
+		/**
+		 * Creates a copy of this member holding the roles they have right now, the way JDA builds uncached members
+		 * @return
+		 */
+		Member copy()
+		{
+			List<net.dv8tion.jda.api.entities.Role> roles = this.roles;
+			return member(() -> roles);
+		}
+		
+		private Member member(Supplier<List<net.dv8tion.jda.api.entities.Role>> roles)
+		{
+			return Stubs.stub(Member.class, (method, args) -> switch (method.getName())
+			{
+				case "getIdLong" -> discordID;
+				case "getId" -> Long.toString(discordID);
+				case "getEffectiveName", "getNickname" -> name;
+				case "getAsMention" -> "<@" + discordID + ">";
+				case "getRoles" -> roles.get();
+				case "getUser" -> user;
+				case "getGuild" -> guild;
+				case "getJDA" -> jda;
+				default -> Stubs.unsupported(method);
+			});
+		}
+	}
+}
\ No newline at end of file
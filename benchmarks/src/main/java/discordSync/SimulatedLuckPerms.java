@@ -0,0 +1,232 @@
+package discordSync;
+
+import net.luckperms.api.*;
+import net.luckperms.api.event.*;
+import net.luckperms.api.model.data.*;
+import net.luckperms.api.model.group.*;
+import net.luckperms.api.model.user.*;
+import net.luckperms.api.node.*;
+import net.luckperms.api.node.types.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * An in-process stand-in for LuckPerms
+ * <p>
+ *     Users only have the groups they directly inherit. Online players are loaded when they join, as LuckPerms does at
+ *     login, anyone else has to be loaded from storage first. Loading and saving a user takes the configured latency.
+ * </p>
+ */
+class SimulatedLuckPerms
+{
+	final long latencyMillis;
+	final LuckPerms api;
+	final ConcurrentHashMap<UUID, SimulatedUser> users = new ConcurrentHashMap<>();
+	final ExecutorService storage = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Simulated-LuckPerms-", 0).factory());
+	//told about every save, with the groups the user was saved with
+	volatile BiConsumer<UUID, Set<String>> saveListener = (minecraftUUID, groups) -> {};
+	
+	SimulatedLuckPerms(long latencyMillis)
+	{
+		this.latencyMillis = latencyMillis;
+		UserManager userManager = Stubs.stub(UserManager.class, (method, args) -> switch (method.getName())
+		{
+			case "getUser" -> args[0] instanceof UUID minecraftUUID ? loadedUser(minecraftUUID) : null;
+			case "isLoaded" -> loadedUser((UUID)args[0]) != null;
+			case "loadUser" -> CompletableFuture.supplyAsync(() ->
+			{
+				sleep();
+				SimulatedUser user = user((UUID)args[0]);
+				user.loaded = true;
+				return user.user;
+			}, storage);
+			case "saveUser" -> CompletableFuture.runAsync(() ->
+			{
+				sleep();
+				SimulatedUser user = users.get(((net.luckperms.api.model.user.User)args[0]).getUniqueId());
+				saveListener.accept(user.minecraftUUID, user.groups());
+			}, storage);
+			default -> Stubs.unsupported(method);
+		});
+		GroupManager groupManager = Stubs.stub(GroupManager.class, (method, args) -> switch (method.getName())
+		{
+			case "getGroup" -> Stubs.stub(Group.class, (groupMethod, groupArgs) -> switch (groupMethod.getName())
+			{
+				case "getName" -> args[0];
+				default -> Stubs.unsupported(groupMethod);
+			});
+			default -> Stubs.unsupported(method);
+		});
+		EventBus eventBus = Stubs.stub(EventBus.class, (method, args) -> switch (method.getName())
+		{
+			case "subscribe" -> Stubs.stub(EventSubscription.class, (subscriptionMethod, subscriptionArgs) -> switch (subscriptionMethod.getName())
+			{
+				case "close" -> null;
+				case "isActive" -> true;
+				default -> Stubs.unsupported(subscriptionMethod);
+			});
+			default -> Stubs.unsupported(method);
+		});
+		NodeBuilderRegistry nodeBuilders = Stubs.stub(NodeBuilderRegistry.class, (method, args) -> switch (method.getName())
+		{
+			case "forInheritance" -> inheritanceBuilder(null);
+			default -> Stubs.unsupported(method);
+		});
+		api = Stubs.stub(LuckPerms.class, (method, args) -> switch (method.getName())
+		{
+			case "getUserManager" -> userManager;
+			case "getGroupManager" -> groupManager;
+			case "getEventBus" -> eventBus;
+			case "getNodeBuilderRegistry" -> nodeBuilders;
+			case "getMessagingService" -> Optional.empty();
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	/**
+	 * Makes this the instance returned by {@link LuckPermsProvider#get()}
+	 */
+	void register()
+	{
+		invokeProvider("register", api);
+	}
+	
+	/**
+	 * Stops this being returned by {@link LuckPermsProvider#get()}
+	 */
+	void unregister()
+	{
+		invokeProvider("unregister");
+	}
+	
+	private static void invokeProvider(String name, Object... args)
+	{
+		//the provider is normally only set by LuckPerms itself
+		try
+		{
+			Method method = args.length == 0 ? LuckPermsProvider.class.getDeclaredMethod(name) : LuckPermsProvider.class.getDeclaredMethod(name, LuckPerms.class);
+			method.setAccessible(true);
+			method.invoke(null, args);
+		}
+		catch (ReflectiveOperationException exception)
+		{
+			throw new IllegalStateException("Could not " + name + " the simulated LuckPerms.", exception);
+		}
+	}
+	
+	/**
+	 * Loads a user, as LuckPerms does when a player logs in
+	 * @param minecraftUUID
+	 */
+	void login(UUID minecraftUUID)
+	{
+		user(minecraftUUID).loaded = true;
+	}
+	
+	/**
+	 * Gets the groups a user currently inherits
+	 * @param minecraftUUID
+	 * @return
+	 */
+	Set<String> groups(UUID minecraftUUID)
+	{
+		return user(minecraftUUID).groups();
+	}
+	
+	private SimulatedUser user(UUID minecraftUUID)
+	{
+		return users.computeIfAbsent(minecraftUUID, SimulatedUser::new);
+	}
+	
+	private net.luckperms.api.model.user.User loadedUser(UUID minecraftUUID)
+	{
+		SimulatedUser user = users.get(minecraftUUID);
+		return user != null && user.loaded ? user.user : null;
+	}
+	
+	private void sleep()
+	{
+		try
+		{
+			Thread.sleep(latencyMillis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while simulating LuckPerms storage.");
+		}
+	}
+	
+	private static InheritanceNode.Builder inheritanceBuilder(String group)
+	{
+		return Stubs.stub(InheritanceNode.Builder.class, (method, args) -> switch (method.getName())
+		{
+			case "group" -> inheritanceBuilder(args[0] instanceof Group groupArg ? groupArg.getName() : (String)args[0]);
+			case "value", "withContext", "context", "expiry", "clearExpiry" -> inheritanceBuilder(group);
+			case "build" -> inheritanceNode(group);
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	private static InheritanceNode inheritanceNode(String group)
+	{
+		return Stubs.stub(InheritanceNode.class, (method, args) -> switch (method.getName())
+		{
+			case "getGroupName" -> group;
+			case "getKey" -> "group." + group;
+			case "getValue" -> true;
+			case "getContexts" -> Stubs.NO_CONTEXTS;
+			case "hasExpiry" -> false;
+			case "getType" -> NodeType.INHERITANCE;
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	/**
+	 * A LuckPerms user and the groups they directly inherit
+	 */
+	class SimulatedUser
+	{
+		final UUID minecraftUUID;
+		final Set<String> groups = new HashSet<>();
+		final net.luckperms.api.model.user.User user;
+		volatile boolean loaded = false;
+		
+		SimulatedUser(UUID minecraftUUID)
+		{
+			this.minecraftUUID = minecraftUUID;
+			NodeMap data = Stubs.stub(NodeMap.class, (method, args) -> switch (method.getName())
+			{
+				case "add" -> change((Node)args[0], true);
+				case "remove" -> change((Node)args[0], false);
+				default -> Stubs.unsupported(method);
+			});
+			user = Stubs.stub(net.luckperms.api.model.user.User.class, (method, args) -> switch (method.getName())
+			{
+				case "getUniqueId" -> minecraftUUID;
+				case "getPrimaryGroup" -> "default";
+				case "getNodes" -> groups().stream().map(SimulatedLuckPerms::inheritanceNode).toList();
+				case "data" -> data;
+				default -> Stubs.unsupported(method);
+			});
+		}
+		
+		synchronized Set<String> groups()
+		{
+			return Set.copyOf(groups);
+		}
+		
+		private synchronized DataMutateResult change(Node node, boolean add)
+		{
+			if (!(node instanceof InheritanceNode inheritanceNode))
+				throw new UnsupportedOperationException("Only group nodes are simulated.");
+			boolean changed = add ? groups.add(inheritanceNode.getGroupName()) : groups.remove(inheritanceNode.getGroupName());
+			if (changed)
+				return DataMutateResult.SUCCESS;
+			return add ? DataMutateResult.FAIL_ALREADY_HAS : DataMutateResult.FAIL_LACKS;
+		}
+	}
+}
\ No newline at end of file
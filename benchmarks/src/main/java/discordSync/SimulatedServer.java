@@ -0,0 +1,325 @@
+package discordSync;
+
+import org.bukkit.*;
+import org.bukkit.command.*;
+import org.bukkit.entity.*;
+import org.bukkit.event.*;
+import org.bukkit.plugin.*;
+import org.bukkit.plugin.java.*;
+import org.bukkit.scheduler.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * A stand-in for the Bukkit server, with a main thread of its own
+ * <p>
+ *     Everything the plugin hands to the scheduler runs on the simulated main thread, and the time it takes is recorded
+ *     so it can be compared with the 50 millisecond budget of a server tick. Events are delivered to registered
+ *     listeners' {@link EventHandler} methods, the same as Bukkit does.
+ * </p>
+ */
+class SimulatedServer
+{
+	static final long TICK_MILLIS = 50;
+	
+	final Logger logger = Logger.getLogger("SimulatedServer");
+	final ScheduledExecutorService mainThread;
+	final Thread mainThreadHandle;
+	final Server server;
+	final ConcurrentHashMap<UUID, Player> onlinePlayers = new ConcurrentHashMap<>();
+	final Map<String, PluginCommand> commands = new HashMap<>();
+	final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	final AtomicInteger taskIDs = new AtomicInteger();
+	final Map<Integer, Future<?>> tasks = new ConcurrentHashMap<>();
+	//time spent on the main thread running tasks the plugin scheduled
+	final LoadSimulator.Samples scheduledTaskTimes = new LoadSimulator.Samples();
+	
+	SimulatedServer() throws Exception
+	{
+		mainThread = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "Server thread");
+			thread.setDaemon(true);
+			return thread;
+		});
+		mainThreadHandle = runOnMainThread(Thread::currentThread);
+		
+		BukkitScheduler scheduler = Stubs.stub(BukkitScheduler.class, (method, args) -> switch (method.getName())
+		{
+			case "runTask" -> task(schedule((Runnable)args[1], 0, 0));
+			case "runTaskLater" -> task(schedule((Runnable)args[1], (long)args[2], 0));
+			case "runTaskTimer" -> task(schedule((Runnable)args[1], (long)args[2], (long)args[3]));
+			case "scheduleSyncDelayedTask" -> schedule((Runnable)args[1], args.length > 2 ? (long)args[2] : 0, 0);
+			case "scheduleSyncRepeatingTask" -> schedule((Runnable)args[1], (long)args[2], (long)args[3]);
+			case "cancelTask" -> cancel((int)args[0]);
+			case "cancelTasks" ->
+			{
+				for (int taskID : tasks.keySet())
+					cancel(taskID);
+				yield null;
+			}
+			default -> Stubs.unsupported(method);
+		});
+		PluginManager pluginManager = Stubs.stub(PluginManager.class, (method, args) -> switch (method.getName())
+		{
+			case "registerEvents" -> listeners.add((Listener)args[0]);
+			case "callEvent" -> callEvent((Event)args[0]);
+			case "isPluginEnabled" -> true;
+			//no other plugins are loaded, LuckPerms is only simulated through its API
+			case "getPlugin" -> null;
+			default -> Stubs.unsupported(method);
+		});
+		ConsoleCommandSender console = Stubs.stub(ConsoleCommandSender.class, (method, args) -> switch (method.getName())
+		{
+			case "sendMessage" -> log(args[0]);
+			case "getName" -> "CONSOLE";
+			case "isOp", "hasPermission" -> true;
+			default -> Stubs.unsupported(method);
+		});
+		server = Stubs.stub(Server.class, (method, args) -> switch (method.getName())
+		{
+			case "getLogger" -> logger;
+			case "getName" -> "SimulatedServer";
+			case "getVersion" -> "simulated";
+			case "getBukkitVersion" -> "1.20.2-R0.1-SNAPSHOT";
+			case "getScheduler" -> scheduler;
+			case "getPluginManager" -> pluginManager;
+			case "getConsoleSender" -> console;
+			case "isPrimaryThread" -> Thread.currentThread() == mainThreadHandle;
+			case "getOnlinePlayers" -> List.copyOf(onlinePlayers.values());
+			case "getPlayer" -> args[0] instanceof UUID minecraftUUID ? onlinePlayers.get(minecraftUUID) : playerByName((String)args[0]);
+			case "getPlayerExact" -> playerByName((String)args[0]);
+			case "getOfflinePlayer" -> offlinePlayer((UUID)args[0]);
+			case "getPluginCommand" -> commands.get(((String)args[0]).toLowerCase(Locale.ROOT));
+			default -> Stubs.unsupported(method);
+		});
+		Bukkit.setServer(server);
+	}
+	
+	/**
+	 * Creates the plugin as the server would load it, without enabling it
+	 * @param dataFolder
+	 * @return
+	 */
+	DiscordSync load(File dataFolder) throws Exception
+	{
+		PluginDescriptionFile description;
+		try (InputStream stream = DiscordSync.class.getClassLoader().getResourceAsStream("plugin.yml"))
+		{
+			description = new PluginDescriptionFile(stream);
+		}
+		@SuppressWarnings("deprecation")
+		JavaPluginLoader loader = new JavaPluginLoader(server);
+		DiscordSync plugin = new DiscordSync(loader, description, dataFolder, new File(dataFolder.getParentFile(), "DiscordSync.jar"));
+		
+		//commands are normally created from plugin.yml by the plugin manager
+		Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+		constructor.setAccessible(true);
+		for (Map.Entry<String, Map<String, Object>> entry : description.getCommands().entrySet())
+		{
+			PluginCommand command = constructor.newInstance(entry.getKey(), plugin);
+			if (entry.getValue().get("usage") instanceof String usage)
+				command.setUsage(usage);
+			if (entry.getValue().get("permission") instanceof String permission)
+				command.setPermission(permission);
+			commands.put(entry.getKey().toLowerCase(Locale.ROOT), command);
+		}
+		return plugin;
+	}
+	
+	/**
+	 * Enables or disables the plugin on the main thread, as the plugin manager would
+	 * @param plugin
+	 * @param enabled
+	 */
+	void setEnabled(JavaPlugin plugin, boolean enabled) throws Exception
+	{
+		Method setEnabled = JavaPlugin.class.getDeclaredMethod("setEnabled", boolean.class);
+		setEnabled.setAccessible(true);
+		runOnMainThread(() -> setEnabled.invoke(plugin, enabled));
+	}
+	
+	/**
+	 * Runs a task on the main thread and waits for it
+	 * @param task
+	 * @return
+	 * @param <T>
+	 */
+	<T> T runOnMainThread(Callable<T> task) throws Exception
+	{
+		try
+		{
+			return mainThread.submit(task).get();
+		}
+		catch (ExecutionException exception)
+		{
+			if (exception.getCause() instanceof Exception cause)
+				throw cause;
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Runs a task on the main thread, waits for it and returns how long it took in nanoseconds
+	 * @param task
+	 * @return
+	 */
+	long timeOnMainThread(Runnable task) throws Exception
+	{
+		return runOnMainThread(() ->
+		{
+			long startTime = System.nanoTime();
+			task.run();
+			return System.nanoTime() - startTime;
+		});
+	}
+	
+	/**
+	 * Creates a player, without them joining the server yet
+	 * @param minecraftUUID
+	 * @param name
+	 * @param messages told about every message sent to the player
+	 * @return
+	 */
+	Player createPlayer(UUID minecraftUUID, String name, Consumer<String> messages)
+	{
+		return Stubs.stub(Player.class, (method, args) -> switch (method.getName())
+		{
+			case "getUniqueId" -> minecraftUUID;
+			case "getName", "getDisplayName", "getPlayerListName" -> name;
+			case "isOp", "hasPermission", "isPermissionSet" -> false;
+			case "isOnline" -> onlinePlayers.containsKey(minecraftUUID);
+			case "getServer" -> server;
+			case "sendMessage" ->
+			{
+				for (Object arg : args)
+				{
+					if (arg instanceof String message)
+						messages.accept(message);
+					else if (arg instanceof String[] lines)
+						for (String line : lines)
+							messages.accept(line);
+				}
+				yield null;
+			}
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	/**
+	 * Delivers an event to every registered listener's handlers on the calling thread
+	 * @param event
+	 * @return
+	 */
+	Object callEvent(Event event)
+	{
+		for (Listener listener : listeners)
+		{
+			for (Method method : listener.getClass().getMethods())
+			{
+				if (!method.isAnnotationPresent(EventHandler.class) || method.getParameterCount() != 1 || !method.getParameterTypes()[0].isInstance(event))
+					continue;
+				try
+				{
+					method.invoke(listener, event);
+				}
+				catch (InvocationTargetException exception)
+				{
+					logger.log(Level.SEVERE, "Could not pass " + event.getClass().getSimpleName() + " to " + listener.getClass().getSimpleName(), exception.getCause());
+				}
+				catch (IllegalAccessException exception)
+				{
+					throw new IllegalStateException(exception);
+				}
+			}
+		}
+		return null;
+	}
+	
+	private int schedule(Runnable task, long delayTicks, long periodTicks)
+	{
+		int taskID = taskIDs.incrementAndGet();
+		Runnable timed = () ->
+		{
+			long startTime = System.nanoTime();
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException exception)
+			{
+				logger.log(Level.WARNING, "Task " + taskID + " threw an exception", exception);
+			}
+			scheduledTaskTimes.add(System.nanoTime() - startTime);
+		};
+		//tasks run no sooner than the next tick
+		long delay = Math.max(1, delayTicks) * TICK_MILLIS;
+		if (periodTicks > 0)
+			tasks.put(taskID, mainThread.scheduleAtFixedRate(timed, delay, Math.max(1, periodTicks) * TICK_MILLIS, TimeUnit.MILLISECONDS));
+		else
+			mainThread.schedule(timed, delay, TimeUnit.MILLISECONDS);
+		return taskID;
+	}
+	
+	private BukkitTask task(int taskID)
+	{
+		return Stubs.stub(BukkitTask.class, (method, args) -> switch (method.getName())
+		{
+			case "getTaskId" -> taskID;
+			case "isSync" -> true;
+			case "cancel" -> cancel(taskID);
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	private Object cancel(int taskID)
+	{
+		Future<?> task = tasks.remove(taskID);
+		if (task != null)
+			task.cancel(false);
+		return null;
+	}
+	
+	private Player playerByName(String name)
+	{
+		for (Player player : onlinePlayers.values())
+			if (player.getName().equalsIgnoreCase(name))
+				return player;
+		return null;
+	}
+	
+	private OfflinePlayer offlinePlayer(UUID minecraftUUID)
+	{
+		Player player = onlinePlayers.get(minecraftUUID);
+		if (player != null)
+			return player;
+		return Stubs.stub(OfflinePlayer.class, (method, args) -> switch (method.getName())
+		{
+			case "getUniqueId" -> minecraftUUID;
+			case "getName" -> null;
+			case "isOnline" -> false;
+			case "getPlayer" -> null;
+			default -> Stubs.unsupported(method);
+		});
+	}
+	
+	private Object log(Object message)
+	{
+		logger.info(String.valueOf(message));
+		return null;
+	}
+	
+	/**
+	 * Stops the main thread
+	 */
+	void shutdown()
+	{
+		mainThread.shutdownNow();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import net.luckperms.api.context.*;
+import net.luckperms.api.node.types.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Stand-ins for the JDA and LuckPerms objects the benchmarks need
+ * <p>
+ *     Only the methods the plugin actually calls are answered, anything else throws so that a benchmark can't quietly
+ *     start measuring a code path the stubs don't support.
+ * </p>
+ */
+final class Stubs
+{
+	private Stubs()
+	{
+		
+	}
+	
+	/**
+	 * Creates a discord guild member with the given roles
+	 * @param discordID
+	 * @param roles
+	 * @return
+	 */
+	static Member member(long discordID, List<net.dv8tion.jda.api.entities.Role> roles)
+	{
+		List<net.dv8tion.jda.api.entities.Role> memberRoles = List.copyOf(roles);
+		return stub(Member.class, (method, args) -> switch (method.getName())
+		{
+			case "getIdLong" -> discordID;
+			case "getId" -> Long.toUnsignedString(discordID);
+			case "getRoles" -> memberRoles;
+			default -> unsupported(method);
+		});
+	}
+	
+	/**
+	 * Creates a discord role with the given ID
+	 * @param discordRoleID
+	 * @return
+	 */
+	static net.dv8tion.jda.api.entities.Role discordRole(long discordRoleID)
+	{
+		return stub(net.dv8tion.jda.api.entities.Role.class, (method, args) -> switch (method.getName())
+		{
+			case "getIdLong" -> discordRoleID;
+			case "getId" -> Long.toUnsignedString(discordRoleID);
+			default -> unsupported(method);
+		});
+	}
+	
+	//every stubbed group is held globally
+	static final ImmutableContextSet NO_CONTEXTS = stub(ImmutableContextSet.class, (method, args) -> switch (method.getName())
+	{
+		case "isEmpty" -> true;
+		default -> unsupported(method);
+	});
+	
+	/**
+	 * Creates a LuckPerms user that directly inherits the given groups
+	 * @param groups
+	 * @return
+	 */
+	static net.luckperms.api.model.user.User luckPermsUser(Collection<String> groups)
+	{
+		List<InheritanceNode> nodes = new ArrayList<>();
+		for (String group : groups)
+			nodes.add(stub(InheritanceNode.class, (method, args) -> switch (method.getName())
+			{
+				case "getGroupName" -> group;
+				case "getValue" -> true;
+				case "getContexts" -> NO_CONTEXTS;
+				case "hasExpiry" -> false;
+				default -> unsupported(method);
+			}));
+		List<InheritanceNode> userNodes = List.copyOf(nodes);
+		return stub(net.luckperms.api.model.user.User.class, (method, args) -> switch (method.getName())
+		{
+			case "getNodes" -> userNodes;
+			default -> unsupported(method);
+		});
+	}
+	
+	static Object unsupported(Method method)
+	{
+		throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + method.getName() + " is not stubbed.");
+	}
+	
+	/**
+	 * Creates a stand-in for an interface that answers every method other than equals, hashCode and toString with the
+	 * given answer
+	 * @param type
+	 * @param answer
+	 * @return
+	 * @param <T>
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T stub(Class<T> type, Answer answer)
+	{
+		return (T)Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> switch (method.getName())
+		{
+			case "equals" -> proxy == args[0];
+			case "hashCode" -> System.identityHashCode(proxy);
+			case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+			default -> answer.answer(method, args);
+		});
+	}
+	
+	interface Answer
+	{
+		Object answer(Method method, Object[] args) throws Throwable;
+	}
+}
\ No newline at end of file
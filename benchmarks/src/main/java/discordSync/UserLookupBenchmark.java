@@ -0,0 +1,118 @@
+package discordSync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Looking up users by minecraft name and by discord ID
+ * <p>
+ *     {@link User#getByPlayerName(DiscordSync, String)} and {@link User#getByPlayerDiscordID(DiscordSync, long)} are
+ *     measured through a plugin created by the simulated server, with every profile saved to its user store, so each
+ *     lookup includes loading the user. The index lookups they start with are also measured on their own, as a
+ *     baseline.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserLookupBenchmark
+{
+	//lookups cycle through this many pre-chosen profiles, so choosing one costs nothing
+	static final int LOOKUPS = 4096;
+	
+	@Param({"1000", "10000"})
+	int profiles;
+	
+	@Param({"yaml", "log"})
+	String userStore;
+	
+	SimulatedServer server;
+	DiscordSync plugin;
+	Path dataFolder;
+	String[] names;
+	long[] discordIDs;
+	int next = 0;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		dataFolder = Files.createTempDirectory("discordsync-lookups");
+		Files.writeString(dataFolder.resolve("config.yml"), "user-store:\n  type: " + userStore + "\n", StandardCharsets.UTF_8);
+		server = new SimulatedServer();
+		plugin = server.load(dataFolder.toFile());
+		//only what the lookups need, rather than enabling the whole plugin
+		plugin.blocking = new BlockingExecutor(plugin);
+		plugin.cluster = new Cluster(plugin);
+		plugin.userStore = UserStore.create(plugin);
+		
+		Random random = new Random(profiles);
+		String[] allNames = new String[profiles];
+		long[] allDiscordIDs = new long[profiles];
+		ArrayList<UserRecord> records = new ArrayList<>();
+		for (int profile = 0; profile < profiles; profile++)
+		{
+			allNames[profile] = "Player" + profile;
+			allDiscordIDs[profile] = 100000000000000000L + random.nextInt(Integer.MAX_VALUE);
+			records.add(new UserRecord(new UUID(random.nextLong(), random.nextLong()), allDiscordIDs[profile], allNames[profile]));
+		}
+		plugin.userStore().saveAll(records);
+		//lookups read what is on disk, as they would once the server has been running a while
+		((WriteBehindUserStore)plugin.userStore()).flush();
+		plugin.userIndex().build(plugin);
+		
+		names = new String[LOOKUPS];
+		discordIDs = new long[LOOKUPS];
+		for (int lookup = 0; lookup < LOOKUPS; lookup++)
+		{
+			int profile = random.nextInt(profiles);
+			names[lookup] = allNames[profile];
+			discordIDs[lookup] = allDiscordIDs[profile];
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		plugin.userStore().close();
+		plugin.blocking().shutdown();
+		server.shutdown();
+		try (Stream<Path> paths = Files.walk(dataFolder))
+		{
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(path);
+		}
+	}
+	
+	@Benchmark
+	public User getByPlayerName()
+	{
+		return User.getByPlayerName(plugin, names[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public User getByPlayerDiscordID()
+	{
+		return User.getByPlayerDiscordID(plugin, discordIDs[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public UUID indexByName()
+	{
+		return plugin.userIndex().getByName(names[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public UUID indexByDiscordID()
+	{
+		return plugin.userIndex().getByDiscordID(discordIDs[next++ & (LOOKUPS - 1)]);
+	}
+}
\ No newline at end of file
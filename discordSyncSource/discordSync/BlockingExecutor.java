@@ -0,0 +1,269 @@
+package discordSync;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs every blocking Discord, LuckPerms, storage and cluster call made by the plugin
+ * <p>
+ *     Each kind of call has its own limit on how many can run at once, anything over the limit waits for a permit.
+ *     Asynchronous work runs on virtual threads, so waiting for a permit or a response doesn't tie up a platform thread.
+ *     How long calls spend waiting for a permit and running is recorded for each kind.
+ * </p>
+ */
+public class BlockingExecutor
+{
+	public static final String LUCK_PERMS_TIMEOUT = "blocking-calls.luck-perms-timeout";
+	
+	final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("DiscordSync-Blocking-", 0).factory());
+	final EnumMap<Kind, Limit> limits = new EnumMap<>(Kind.class);
+	final long luckPermsTimeout;
+	
+	public BlockingExecutor(DiscordSync plugin)
+	{
+		for (Kind kind : Kind.values())
+			limits.put(kind, new Limit(Math.max(1, plugin.getConfig().getInt(kind.configKey, kind.defaultLimit))));
+		luckPermsTimeout = Math.max(1, plugin.getConfig().getLong(LUCK_PERMS_TIMEOUT, 10));
+	}
+	
+	/**
+	 * Runs a blocking call on the current thread once a permit for its kind is free
+	 * @param kind
+	 * @param task
+	 * @return the result of the call
+	 * @param <T>
+	 */
+	public <T> T call(Kind kind, Callable<T> task)
+	{
+		Limit limit = limits.get(kind);
+		long queuedTime = System.nanoTime();
+		limit.waiting.incrementAndGet();
+		try
+		{
+			limit.permits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting to make a " + kind.name().toLowerCase(Locale.ROOT) + " call.");
+		}
+		finally
+		{
+			limit.waiting.decrementAndGet();
+		}
+		
+		long startTime = System.nanoTime();
+		limit.waitTimings.record(startTime - queuedTime);
+		try
+		{
+			return task.call();
+		}
+		catch (RuntimeException exception)
+		{
+			limit.failures.increment();
+			throw exception;
+		}
+		catch (Exception exception)
+		{
+			limit.failures.increment();
+			throw new CompletionException(exception);
+		}
+		finally
+		{
+			limit.permits.release();
+			limit.runTimings.record(System.nanoTime() - startTime);
+		}
+	}
+	
+	/**
+	 * Runs a blocking call on a virtual thread once a permit for its kind is free
+	 * @param kind
+	 * @param task
+	 * @return a future holding the result of the call
+	 * @param <T>
+	 */
+	public <T> CompletableFuture<T> submit(Kind kind, Callable<T> task)
+	{
+		return submit(() -> call(kind, task));
+	}
+	
+	/**
+	 * Runs a task on a virtual thread without taking a permit
+	 * <p>
+	 *     For tasks that make several blocking calls, each of which should go through {@link #call(Kind, Callable)}.
+	 * </p>
+	 * @param task
+	 * @return a future holding the result of the task
+	 * @param <T>
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try
+		{
+			executor.execute(() ->
+			{
+				try
+				{
+					future.complete(task.call());
+				}
+				catch (Throwable exception)
+				{
+					future.completeExceptionally(exception);
+				}
+			});
+		}
+		catch (RejectedExecutionException exception)
+		{
+			future.completeExceptionally(exception);
+		}
+		return future;
+	}
+	
+	/**
+	 * Waits for a LuckPerms operation to finish, for at most the configured timeout
+	 * <p>
+	 *     The wait counts against the LuckPerms limit.
+	 * </p>
+	 * @param future
+	 * @return the result of the operation
+	 * @param <T>
+	 */
+	public <T> T awaitLuckPerms(CompletableFuture<T> future)
+	{
+		return call(Kind.LUCK_PERMS, () ->
+		{
+			try
+			{
+				return future.get(luckPermsTimeout, TimeUnit.SECONDS);
+			}
+			catch (TimeoutException e)
+			{
+				limits.get(Kind.LUCK_PERMS).timeouts.increment();
+				throw new IllegalStateException("Timed out after " + luckPermsTimeout + " seconds waiting for LuckPerms.", e);
+			}
+		});
+	}
+	
+	/**
+	 * Gets the statistics for a kind of call
+	 * @param kind
+	 * @return
+	 */
+	public Limit limit(Kind kind)
+	{
+		return limits.get(kind);
+	}
+	
+	/**
+	 * Stops accepting asynchronous work
+	 * <p>
+	 *     Calls already running are left to finish, synchronous calls can still be made.
+	 * </p>
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+	
+	public enum Kind
+	{
+		DISCORD("blocking-calls.discord", 8),
+		LUCK_PERMS("blocking-calls.luck-perms", 16),
+		STORAGE("blocking-calls.storage", 2),
+		CLUSTER("blocking-calls.cluster", 4);
+		
+		final String configKey;
+		final int defaultLimit;
+		
+		Kind(String configKey, int defaultLimit)
+		{
+			this.configKey = configKey;
+			this.defaultLimit = defaultLimit;
+		}
+	}
+	
+	/**
+	 * The concurrency limit for one kind of call, and statistics on how it is being used
+	 */
+	public static class Limit
+	{
+		final int size;
+		final Semaphore permits;
+		final AtomicInteger waiting = new AtomicInteger();
+		final LongAdder failures = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+		final SyncPipeline.StageTimings waitTimings = new SyncPipeline.StageTimings();
+		final SyncPipeline.StageTimings runTimings = new SyncPipeline.StageTimings();
+		
+		Limit(int size)
+		{
+			this.size = size;
+			permits = new Semaphore(size, true);
+		}
+		
+		/**
+		 * Returns the maximum number of calls that can run at once
+		 * @return
+		 */
+		public int size()
+		{
+			return size;
+		}
+		
+		/**
+		 * Returns the number of calls currently running
+		 * @return
+		 */
+		public int active()
+		{
+			return size - permits.availablePermits();
+		}
+		
+		/**
+		 * Returns the number of calls waiting for a permit
+		 * @return
+		 */
+		public int waiting()
+		{
+			return waiting.get();
+		}
+		
+		/**
+		 * Returns the number of calls that threw an exception
+		 * @return
+		 */
+		public long failures()
+		{
+			return failures.sum();
+		}
+		
+		/**
+		 * Returns the number of calls that gave up waiting for a response
+		 * @return
+		 */
+		public long timeouts()
+		{
+			return timeouts.sum();
+		}
+		
+		/**
+		 * Gets how long calls have waited for a permit
+		 * @return
+		 */
+		public SyncPipeline.StageTimings waitTimings()
+		{
+			return waitTimings;
+		}
+		
+		/**
+		 * Gets how long calls have taken once they had a permit
+		 * @return
+		 */
+		public SyncPipeline.StageTimings runTimings()
+		{
+			return runTimings;
+		}
+	}
+}
\ No newline at end of file
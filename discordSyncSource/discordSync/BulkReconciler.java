@@ -0,0 +1,131 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import org.bukkit.entity.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Syncs many players at once, used when the plugin is enabled while players are already online
+ * <p>
+ *     Rather than fetching each player from discord one after another, every linked member is fetched in chunked gateway
+ *     requests and cached. Every player is then synced through the {@link SyncPipeline} a batch at a time, so the syncs
+ *     run in parallel without overtaking anything else queued for the same player. The time taken by each phase is
+ *     reported to the console.
+ * </p>
+ */
+public class BulkReconciler
+{
+	public static final String BATCH_SIZE = "bulk-reconcile.batch-size";
+	
+	//discord won't return more than this many members for a single request
+	static final int MEMBER_CHUNK_SIZE = 100;
+	
+	final DiscordSync plugin;
+	final int batchSize;
+	
+	public BulkReconciler(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		batchSize = Math.max(1, plugin.getConfig().getInt(BATCH_SIZE, 50));
+	}
+	
+	/**
+	 * Reconciles the given players in the background
+	 * <p>
+	 *     Must be called from the main thread, as the players' names are read before handing off.
+	 * </p>
+	 * @param players
+	 */
+	public void start(Collection<? extends Player> players)
+	{
+		LinkedHashMap<UUID, String> names = new LinkedHashMap<>();
+		for (Player player : players)
+			names.put(player.getUniqueId(), player.getName());
+		if (names.isEmpty())
+			return;
+		
+		plugin.blocking().submit(() ->
+		{
+			reconcile(names);
+			return null;
+		}).exceptionally(exception ->
+		{
+			plugin.getLogger().log(Level.WARNING, "Bulk reconcile failed.", exception);
+			return null;
+		});
+	}
+	
+	private void reconcile(Map<UUID, String> names)
+	{
+		long startTime = System.nanoTime();
+		Guild guild = plugin.bot().guild;
+		if (guild == null)
+		{
+			//the same as any sync that finds the bot unavailable, everyone is synced once it connects
+			plugin.getLogger().log(Level.WARNING, "The bot isn't connected to the discord server, players will be synced once it is.");
+			for (Map.Entry<UUID, String> entry : names.entrySet())
+				plugin.syncPipeline().defer(new User(plugin, entry.getKey()), entry.getValue());
+			return;
+		}
+		
+		//load every user to find out who is linked
+		long phaseStart = System.nanoTime();
+		ArrayList<User> users = new ArrayList<>();
+		ArrayList<Long> discordIDs = new ArrayList<>();
+		for (UUID minecraftUUID : names.keySet())
+		{
+			User user = new User(plugin, minecraftUUID);
+			users.add(user);
+			if (user.getDiscordID() != 0)
+				discordIDs.add(user.getDiscordID());
+		}
+		long loadTime = System.nanoTime() - phaseStart;
+		
+		//fetch every linked member over the gateway, in as few requests as discord allows
+		phaseStart = System.nanoTime();
+		HashMap<Long, Member> members = new HashMap<>();
+		for (int index = 0; index < discordIDs.size(); index += MEMBER_CHUNK_SIZE)
+		{
+			List<Long> chunk = discordIDs.subList(index, Math.min(discordIDs.size(), index + MEMBER_CHUNK_SIZE));
+			for (Member member : plugin.blocking().call(BlockingExecutor.Kind.DISCORD, () -> guild.retrieveMembersByIds(chunk).get()))
+				members.put(member.getIdLong(), member);
+		}
+		for (long discordID : discordIDs)
+			plugin.bot().memberCache().put(discordID, members.get(discordID));
+		long fetchTime = System.nanoTime() - phaseStart;
+		
+		//sync everyone through the pipeline, so a join or role update for the same player can't be overtaken, the members
+		//are all cached now so the syncs don't need to ask discord again
+		phaseStart = System.nanoTime();
+		for (int index = 0; index < users.size(); index += batchSize)
+		{
+			List<User> batch = users.subList(index, Math.min(users.size(), index + batchSize));
+			CompletableFuture<?>[] syncs = new CompletableFuture<?>[batch.size()];
+			for (int batchIndex = 0; batchIndex < syncs.length; batchIndex++)
+			{
+				User user = batch.get(batchIndex);
+				syncs[batchIndex] = plugin.syncPipeline().submit(user, names.get(user.minecraftUUID));
+			}
+			try
+			{
+				CompletableFuture.allOf(syncs).join();
+			}
+			catch (CompletionException | CancellationException exception)
+			{
+				//the pipeline has already logged the syncs that failed
+			}
+		}
+		long syncTime = System.nanoTime() - phaseStart;
+		
+		plugin.getLogger().log(Level.INFO, "Reconciled " + users.size() + " players (" + members.size() + " linked) in " + millis(System.nanoTime() - startTime) + "ms: load " + millis(loadTime) +
+										   "ms, fetch " + millis(fetchTime) + "ms, sync " + millis(syncTime) + "ms.");
+	}
+	
+	private static long millis(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
\ No newline at end of file
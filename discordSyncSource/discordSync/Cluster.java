@@ -0,0 +1,624 @@
+package discordSync;
+
+import net.luckperms.api.*;
+import org.bukkit.*;
+import org.bukkit.configuration.file.*;
+import org.bukkit.entity.*;
+import org.bukkit.plugin.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Lets several servers behind a proxy share one discord bot and one set of user data
+ * <p>
+ *     Every server keeps its users in a shared directory. One server, the leader, holds a lease in that directory and is
+ *     the only one that connects the discord bot. The others pass player syncs, link codes and LuckPerms group changes
+ *     on to it through a leader inbox, which whichever server holds the lease reads, so nothing sent while the bot is
+ *     changing hands is lost. Messages for a player are sent back to the inbox of the server they are on. If the
+ *     leader stops renewing its lease another server takes over the bot.
+ * </p>
+ * <p>
+ *     When clustering is turned off this server is always the leader, and nothing is forwarded.
+ * </p>
+ */
+public class Cluster
+{
+	public static final String ENABLED = "cluster.enabled";
+	public static final String SERVER_ID = "cluster.server-id";
+	public static final String SHARED_DIRECTORY = "cluster.shared-directory";
+	public static final String LEASE_TIME = "cluster.lease-time";
+	public static final String POLL_INTERVAL = "cluster.poll-interval";
+	
+	//LuckPerms storage methods that keep data on the server itself rather than in a database the servers can share
+	static final Set<String> LOCAL_STORAGE_METHODS = Set.of("h2", "sqlite", "yaml", "json", "hocon", "toml", "yaml-combined", "json-combined", "hocon-combined", "toml-combined");
+	
+	//read by whichever server currently holds the lease
+	static final String LEADER_INBOX = "leader";
+	
+	//sent to the leader
+	static final String SYNC = "sync";
+	static final String LINK = "link";
+	static final String ROLE = "role";
+	//sent from the leader
+	static final String TELL = "tell";
+	static final String LINKED = "linked";
+	
+	final DiscordSync plugin;
+	final boolean enabled;
+	final String serverID;
+	final File sharedDirectory;
+	final long leaseTime;
+	//how long the leader can go without renewing its lease before giving up the bot, well before anyone can take it over
+	final long stepDownTime;
+	final long pollInterval;
+	final Lease lease;
+	final Channel channel;
+	//the server each player last sent a request from, so replies reach them
+	final ConcurrentHashMap<UUID, String> playerServers = new ConcurrentHashMap<>();
+	final LongAdder messagesSent = new LongAdder();
+	final LongAdder messagesReceived = new LongAdder();
+	Thread worker;
+	volatile boolean running = false;
+	volatile boolean leader = false;
+	volatile String leaderID = null;
+	boolean started = false;
+	long lastRenewal = System.nanoTime();
+	boolean leaseFailing = false;
+	
+	public Cluster(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		enabled = plugin.getConfig().getBoolean(ENABLED, false);
+		serverID = readServerID(plugin);
+		sharedDirectory = new File(plugin.getConfig().getString(SHARED_DIRECTORY, "plugins/DiscordSync/shared"));
+		leaseTime = Math.max(2, plugin.getConfig().getLong(LEASE_TIME, 15));
+		stepDownTime = TimeUnit.SECONDS.toNanos(leaseTime) / 2;
+		pollInterval = Math.max(10, plugin.getConfig().getLong(POLL_INTERVAL, 250));
+		if (enabled)
+		{
+			lease = new FileLease(sharedDirectory, serverID, leaseTime);
+			channel = new FileMessageChannel(new File(sharedDirectory, "messages"), serverID);
+		}
+		else
+		{
+			lease = null;
+			channel = null;
+		}
+	}
+	
+	private static String readServerID(DiscordSync plugin)
+	{
+		String serverID = plugin.getConfig().getString(SERVER_ID, "");
+		if (serverID == null || serverID.isBlank())
+		{
+			if (!plugin.getConfig().getBoolean(ENABLED, false))
+				return "local";
+			serverID = "server-" + Bukkit.getPort();
+			plugin.getLogger().log(Level.WARNING, SERVER_ID + " is not set, using \"" + serverID + "\". Make sure every server in the network has its own ID.");
+		}
+		//it names this server's inbox folder
+		String folderName = serverID.replaceAll("[^A-Za-z0-9_.-]", "_");
+		//the leader's inbox, or a folder name that means the current or parent folder, would be read as something else
+		if (folderName.equalsIgnoreCase(LEADER_INBOX) || folderName.matches("\\.+"))
+		{
+			String renamed = "server-" + folderName;
+			plugin.getLogger().log(Level.WARNING, SERVER_ID + " can't be \"" + serverID + "\", using \"" + renamed + "\" instead. Make sure every server in the network has its own ID.");
+			return renamed;
+		}
+		return folderName;
+	}
+	
+	/**
+	 * Starts the discord bot if this server should own it, and starts listening to the other servers if clustering is on
+	 * <p>
+	 *     The lease is checked once straight away, so by the time this returns it is known whether this server is the
+	 *     leader.
+	 * </p>
+	 */
+	public void enable()
+	{
+		if (!enabled)
+		{
+			plugin.startBotServices();
+			return;
+		}
+		checkLuckPerms();
+		running = true;
+		checkLease();
+		started = true;
+		worker = new Thread(this::run, "DiscordSync-Cluster");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Warns if LuckPerms isn't set up to share its data between the servers in the network
+	 * <p>
+	 *     The server that owns the bot changes the groups of players on every server, which only reaches the other servers
+	 *     if LuckPerms keeps its data in a shared database and tells them about changes through a messaging service.
+	 * </p>
+	 */
+	private void checkLuckPerms()
+	{
+		//the storage method isn't part of the LuckPerms API, so it is read from its config
+		Plugin luckPerms = Bukkit.getPluginManager().getPlugin("LuckPerms");
+		if (luckPerms != null)
+		{
+			String storageMethod = YamlConfiguration.loadConfiguration(new File(luckPerms.getDataFolder(), "config.yml")).getString("storage-method", "h2");
+			if (LOCAL_STORAGE_METHODS.contains(storageMethod.toLowerCase(Locale.ROOT)))
+				plugin.getLogger().log(Level.WARNING, "LuckPerms is using " + storageMethod + " storage, which isn't shared between servers. Group changes made by the server that owns the discord bot won't " +
+													   "reach players on the other servers, set LuckPerms to use a database such as MySQL that every server in the network uses.");
+		}
+		if (LuckPermsProvider.get().getMessagingService().isEmpty())
+			plugin.getLogger().log(Level.WARNING, "LuckPerms has no messaging service set up, so group changes made by the server that owns the discord bot will only reach players on the " +
+												   "other servers once LuckPerms reloads them. Set messaging-service in the LuckPerms config.");
+	}
+	
+	private void run()
+	{
+		long renewInterval = TimeUnit.SECONDS.toNanos(leaseTime) / 4;
+		long nextLeaseCheck = System.nanoTime() + renewInterval;
+		while (running)
+		{
+			try
+			{
+				if (System.nanoTime() - nextLeaseCheck >= 0)
+				{
+					checkLease();
+					nextLeaseCheck = System.nanoTime() + renewInterval;
+					//while the lease can't be renewed, check again no later than when the bot has to be given up
+					if (leader && leaseFailing && lastRenewal + stepDownTime - nextLeaseCheck < 0)
+						nextLeaseCheck = lastRenewal + stepDownTime;
+				}
+				receive();
+				Thread.sleep(pollInterval);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (IOException | RuntimeException exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not read messages from the other servers, will try again shortly.", exception);
+				try
+				{
+					Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Takes or renews the lease if it is free or already ours, and starts or stops the bot if that changes who owns it
+	 */
+	private void checkLease()
+	{
+		String holder;
+		try
+		{
+			holder = lease.acquire();
+		}
+		catch (IOException exception)
+		{
+			if (!leaseFailing)
+				plugin.getLogger().log(Level.WARNING, "Could not check who owns the discord bot, is the shared directory " + sharedDirectory + " reachable?", exception);
+			leaseFailing = true;
+			//without renewing, another server will take over once the lease runs out, so stop well before it can
+			if (leader && System.nanoTime() - lastRenewal >= stepDownTime)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not renew the lease for " + TimeUnit.NANOSECONDS.toSeconds(stepDownTime) + " seconds, giving up the discord bot so another server can take it over.");
+				setLeader(false);
+			}
+			return;
+		}
+		leaseFailing = false;
+		leaderID = holder;
+		if (serverID.equals(holder))
+			lastRenewal = System.nanoTime();
+		setLeader(serverID.equals(holder));
+	}
+	
+	private void setLeader(boolean leader)
+	{
+		if (this.leader == leader)
+			return;
+		this.leader = leader;
+		if (leader)
+		{
+			plugin.getLogger().log(Level.INFO, "This server now owns the discord bot for the network.");
+			//links made while another server owned the bot are only in the shared store
+			if (started)
+				plugin.blocking().submit(BlockingExecutor.Kind.STORAGE, () ->
+				{
+					plugin.userIndex().refresh(plugin);
+					return null;
+				});
+			plugin.syncPipeline().runOnMainThread(plugin::startBotServices);
+		}
+		else
+		{
+			plugin.getLogger().log(Level.INFO, "This server no longer owns the discord bot, stopping it.");
+			//stopped straight away rather than on the main thread, so the bot is down before another server can start its own
+			plugin.stopBotServices();
+		}
+	}
+	
+	private void receive() throws IOException
+	{
+		if (leader)
+			for (String message : channel.receive(LEADER_INBOX))
+				handle(message);
+		for (String message : channel.receive(serverID))
+			handle(message);
+	}
+	
+	private void handle(String message)
+	{
+		messagesReceived.increment();
+		String[] fields = message.split("\t", -1);
+		try
+		{
+			switch (fields[0])
+			{
+				case SYNC ->
+				{
+					UUID minecraftUUID = UUID.fromString(fields[2]);
+					playerServers.put(minecraftUUID, fields[1]);
+					User user = new User(plugin, minecraftUUID);
+					plugin.bot().afterStartup(() -> plugin.syncPipeline().submit(user, fields[3]));
+				}
+				case LINK ->
+				{
+					int code = Integer.parseInt(fields[2]);
+					UUID minecraftUUID = UUID.fromString(fields[3]);
+					playerServers.put(minecraftUUID, fields[1]);
+					plugin.syncPipeline().runOnMainThread(() -> LinkProcess.complete(plugin, code, minecraftUUID, fields[4]));
+				}
+				case ROLE -> plugin.discordRoleQueue().queue(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4].equals("+"));
+				case TELL ->
+				{
+					UUID minecraftUUID = UUID.fromString(fields[2]);
+					plugin.syncPipeline().runOnMainThread(() ->
+					{
+						Player player = Bukkit.getPlayer(minecraftUUID);
+						if (player != null)
+							player.sendMessage(fields[3]);
+					});
+				}
+				case LINKED -> plugin.userIndex().update(UUID.fromString(fields[2]), fields[4], Long.parseLong(fields[3]));
+				default -> plugin.getLogger().log(Level.WARNING, "Ignoring an unknown message from server " + fields[1] + ": " + message);
+			}
+		}
+		catch (IllegalArgumentException | IndexOutOfBoundsException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Ignoring a malformed message from another server: " + message);
+		}
+	}
+	
+	/**
+	 * Checks if this server owns the discord bot
+	 * <p>
+	 *     Always true when clustering is turned off.
+	 * </p>
+	 * @return
+	 */
+	public boolean isLeader()
+	{
+		return !enabled || leader;
+	}
+	
+	/**
+	 * Checks if clustering is turned on
+	 * @return
+	 */
+	public boolean enabled()
+	{
+		return enabled;
+	}
+	
+	/**
+	 * Gets the ID of this server
+	 * @return
+	 */
+	public String serverID()
+	{
+		return serverID;
+	}
+	
+	/**
+	 * Gets the ID of the server that owns the discord bot, as of the last time the lease was checked
+	 * <p>
+	 *     Returns null if it isn't known yet.
+	 * </p>
+	 * @return
+	 */
+	public String leaderID()
+	{
+		return enabled ? leaderID : serverID;
+	}
+	
+	/**
+	 * Gets the folder shared by every server in the network
+	 * @return
+	 */
+	public File sharedDirectory()
+	{
+		return sharedDirectory;
+	}
+	
+	/**
+	 * Asks the server that owns the bot to sync a player who has joined this server
+	 * <p>
+	 *     Must be called from the main thread.
+	 * </p>
+	 * @param player
+	 */
+	public void forwardSync(Player player)
+	{
+		//the leader saves the player's name, but lookups by name on this server need it as well
+		UserIndex.Entry entry = plugin.userIndex().get(player.getUniqueId());
+		plugin.userIndex().update(player.getUniqueId(), player.getName(), entry == null ? 0 : entry.discordID());
+		send(LEADER_INBOX, SYNC, player.getUniqueId().toString(), player.getName());
+	}
+	
+	/**
+	 * Asks the server that owns the bot, which handed out the link code, to link a player on this server
+	 * @param code
+	 * @param player
+	 */
+	public void forwardLink(int code, Player player)
+	{
+		send(LEADER_INBOX, LINK, Integer.toString(code), player.getUniqueId().toString(), player.getName());
+	}
+	
+	/**
+	 * Asks the server that owns the bot to give a role to or take a role from a guild member
+	 * @param discordID
+	 * @param discordRoleID
+	 * @param add
+	 */
+	public void forwardRoleChange(long discordID, long discordRoleID, boolean add)
+	{
+		send(LEADER_INBOX, ROLE, Long.toString(discordID), Long.toString(discordRoleID), add ? "+" : "-");
+	}
+	
+	/**
+	 * Sends a chat message to a player, on whichever server in the network they are on
+	 * <p>
+	 *     Can be called from any thread. Players on another server are only reached if they have recently sent a request
+	 *     from it, otherwise the message is dropped, the same as for a player who isn't online.
+	 * </p>
+	 * @param minecraftUUID
+	 * @param message
+	 */
+	public void tell(UUID minecraftUUID, String message)
+	{
+		plugin.syncPipeline().runOnMainThread(() ->
+		{
+			Player player = Bukkit.getPlayer(minecraftUUID);
+			if (player != null)
+			{
+				player.sendMessage(message);
+				return;
+			}
+			String server = enabled ? playerServers.get(minecraftUUID) : null;
+			if (server != null && !server.equals(serverID))
+				send(server, TELL, minecraftUUID.toString(), message);
+		});
+	}
+	
+	/**
+	 * Lets every other server know that a user has linked their accounts, so their user indexes stay current
+	 * @param minecraftUUID
+	 * @param discordID
+	 * @param name
+	 */
+	public void linked(UUID minecraftUUID, long discordID, String name)
+	{
+		if (!enabled)
+			return;
+		messagesSent.increment();
+		String message = format(LINKED, serverID, minecraftUUID.toString(), Long.toString(discordID), name);
+		plugin.blocking().submit(BlockingExecutor.Kind.CLUSTER, () ->
+		{
+			channel.broadcast(message);
+			return null;
+		}).exceptionally(exception ->
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not tell the other servers that " + name + " has linked their accounts.", exception);
+			return null;
+		});
+	}
+	
+	private void send(String inbox, String type, String... fields)
+	{
+		messagesSent.increment();
+		String[] message = new String[fields.length + 2];
+		message[0] = type;
+		message[1] = serverID;
+		System.arraycopy(fields, 0, message, 2, fields.length);
+		String formatted = format(message);
+		//writing to the shared directory can be slow, so it is kept off the main thread
+		plugin.blocking().submit(BlockingExecutor.Kind.CLUSTER, () ->
+		{
+			channel.send(inbox, formatted);
+			return null;
+		}).exceptionally(exception ->
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not send a " + type + " message to " + (inbox.equals(LEADER_INBOX) ? "the server that owns the discord bot" : "server " + inbox) + ".", exception);
+			return null;
+		});
+	}
+	
+	private static String format(String... fields)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (String field : fields)
+		{
+			if (!builder.isEmpty())
+				builder.append('\t');
+			//names and messages can't normally contain these, but make sure a bad one can't break the message
+			builder.append(field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Returns the number of messages sent to other servers
+	 * @return
+	 */
+	public long messagesSent()
+	{
+		return messagesSent.sum();
+	}
+	
+	/**
+	 * Returns the number of messages received from other servers
+	 * @return
+	 */
+	public long messagesReceived()
+	{
+		return messagesReceived.sum();
+	}
+	
+	/**
+	 * Moves the users this server stored on its own, in either the yaml or log store, into the shared store
+	 * <p>
+	 *     Used the first time a server joins a network. Users the shared store already has are only replaced if they are
+	 *     linked here but not there. What was migrated is renamed afterwards so that it is only ever migrated once.
+	 * </p>
+	 * @param plugin
+	 * @param store
+	 */
+	static void migrate(DiscordSync plugin, UserStore store)
+	{
+		migrate(plugin, store, new File(plugin.getDataFolder(), "userData"));
+		migrate(plugin, store, new File(plugin.getDataFolder(), "users.log"));
+	}
+	
+	private static void migrate(DiscordSync plugin, UserStore store, File source)
+	{
+		if (!source.exists())
+			return;
+		
+		ArrayList<UserRecord> records = new ArrayList<>();
+		Consumer<UserRecord> merge = record ->
+		{
+			UserRecord shared = store.load(record.minecraftUUID);
+			if (shared == null || (shared.discordID == 0 && record.discordID != 0))
+				records.add(record);
+		};
+		if (source.isDirectory())
+			new YamlUserStore(source).forEach(merge);
+		else
+		{
+			try
+			{
+				LogUserStore log = new LogUserStore(source);
+				log.forEach(merge);
+				log.close();
+			}
+			catch (IOException exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not read " + source.getName() + " to migrate it to the shared user store.", exception);
+				return;
+			}
+		}
+		store.saveAll(records);
+		File migratedSource = new File(source.getPath() + "-migrated");
+		if (!source.renameTo(migratedSource))
+			plugin.getLogger().log(Level.WARNING, "Could not rename " + source + " after migrating it, it will be migrated again next time.");
+		plugin.getLogger().log(Level.INFO, "Migrated " + records.size() + " users from " + source.getName() + " to the shared user store.");
+	}
+	
+	/**
+	 * Stops listening to the other servers, and gives up the bot if this server owns it so another can take over
+	 * straight away
+	 */
+	public void shutdown()
+	{
+		if (!enabled)
+			return;
+		running = false;
+		if (worker != null)
+		{
+			worker.interrupt();
+			try
+			{
+				worker.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (leader)
+		{
+			try
+			{
+				lease.release();
+			}
+			catch (IOException exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not give up the discord bot, another server will take it over once the lease runs out.", exception);
+			}
+		}
+	}
+	
+	/**
+	 * Decides which server owns the discord bot
+	 */
+	interface Lease
+	{
+		/**
+		 * Takes the lease if it is free or has run out, or renews it if this server already holds it
+		 * @return the ID of the server that holds the lease
+		 * @throws IOException
+		 */
+		String acquire() throws IOException;
+		
+		/**
+		 * Gives up the lease if this server holds it
+		 * @throws IOException
+		 */
+		void release() throws IOException;
+	}
+	
+	/**
+	 * Carries messages between the servers in the network
+	 */
+	interface Channel
+	{
+		/**
+		 * Adds a message to an inbox
+		 * @param inbox the ID of a server, or {@link #LEADER_INBOX}
+		 * @param message
+		 * @throws IOException
+		 */
+		void send(String inbox, String message) throws IOException;
+		
+		/**
+		 * Adds a message to the inbox of every other server
+		 * @param message
+		 * @throws IOException
+		 */
+		void broadcast(String message) throws IOException;
+		
+		/**
+		 * Takes every message waiting in an inbox, oldest first
+		 * @param inbox
+		 * @return
+		 * @throws IOException
+		 */
+		List<String> receive(String inbox) throws IOException;
+	}
+}
\ No newline at end of file
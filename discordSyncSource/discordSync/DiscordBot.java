@@ -2,30 +2,52 @@ package discordSync;
 
 import net.dv8tion.jda.api.*;
 import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.events.guild.member.*;
+import net.dv8tion.jda.api.events.guild.member.update.*;
+import net.dv8tion.jda.api.events.http.*;
 import net.dv8tion.jda.api.events.interaction.command.*;
+import net.dv8tion.jda.api.events.session.*;
 import net.dv8tion.jda.api.exceptions.*;
 import net.dv8tion.jda.api.hooks.*;
 import net.dv8tion.jda.api.interactions.commands.*;
 import net.dv8tion.jda.api.interactions.commands.build.*;
+import net.dv8tion.jda.api.requests.*;
 import org.bukkit.*;
 import org.bukkit.entity.*;
 import org.bukkit.event.*;
 import org.bukkit.event.player.*;
 import org.jetbrains.annotations.*;
 
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 public class DiscordBot extends ListenerAdapter implements Listener
 {
 	public static final String TOKEN = "discord-bot.token";
 	public static final String GUILD_ID = "discord-bot.guild-id";
+	public static final String CONNECT_TIMEOUT = "discord-bot.connect-timeout";
+	static final int COMMAND_THREADS = 2;
 	
 	final DiscordSync plugin;
-	JDA jda = null;
-	Status status = Status.NOT_RUNNING;
-	Guild guild = null;
+	volatile JDA jda = null;
+	volatile Status status = Status.NOT_RUNNING;
+	volatile Guild guild = null;
+	MemberCache memberCache;
+	//completed on the main thread once the bot is connected and the guild has been looked up
+	volatile CompletableFuture<Void> ready = failedReady();
+	//slash commands run here rather than on JDA's gateway thread
+	volatile ExecutorService commandPool = null;
+	final ConcurrentHashMap<String, SyncPipeline.StageTimings> commandTimings = new ConcurrentHashMap<>();
+	final LongAdder httpRequests = new LongAdder();
+	final LongAdder rateLimitedRequests = new LongAdder();
+	//how the bot logs in, the load simulator swaps this for an in-process stand-in for discord
+	Connector connector = (token, listeners) -> JDABuilder.createDefault(token).enableIntents(GatewayIntent.GUILD_MEMBERS).addEventListeners(listeners).build();
 	
 	public DiscordBot(DiscordSync plugin)
 	{
@@ -37,6 +59,7 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	 */
 	public void enable()
 	{
+		memberCache = new MemberCache(plugin);
 		Bukkit.getPluginManager().registerEvents(this, plugin);
 	}
 	
@@ -48,22 +71,27 @@ public class DiscordBot extends ListenerAdapter implements Listener
 		addCommand("get-guild-id", "Gets the ID for this discord server.", true, DefaultMemberPermissions.enabledFor(Permission.ADMINISTRATOR),
 		(event) ->
 		{
-			event.reply("This server's ID is `" + event.getGuild().getIdLong() + "'").setEphemeral(true).queue();
+			return "This server's ID is `" + event.getGuild().getIdLong() + "'";
 		});
 		
 		addCommand("get-role-id", "Gets the ID for a role.", true, DefaultMemberPermissions.enabledFor(Permission.ADMINISTRATOR),
 		(event) ->
 		{
 			net.dv8tion.jda.api.entities.Role role = event.getOption("role").getAsRole();
-			event.reply(role.getAsMention() + "'s ID is `" + role.getIdLong() + "`").setEphemeral(true).queue();
+			return role.getAsMention() + "'s ID is `" + role.getIdLong() + "`";
 		}, new OptionData(OptionType.ROLE, "role", "The role to get the ID of.", true));
 		
 		addCommand("link-account", "Begins the process of linking your minecraft account with your discord account.", false, DefaultMemberPermissions.enabledFor(Permission.EMPTY_PERMISSIONS),
 		(event) ->
 		{
-			LinkProcess process = new LinkProcess(plugin, event.getMember());
-			event.reply("Link process initiated, run the command `/link-account " + process.getConfirmationCode() + "` in the minecraft server to link your accounts. This process will " +
-						"expire in " + (LinkProcess.confirmationTimeout(plugin) / 60000) + " minutes.").setEphemeral(true).queue();
+			//run from a direct message, where there is no guild member to link
+			if (event.getMember() == null)
+				return "This command can only be used in the discord server.";
+			LinkProcess process = LinkProcess.begin(plugin, event.getMember());
+			if (process == null)
+				return "Too many link processes have been started recently, please wait a minute and try again.";
+			return "Link process initiated, run the command `/link-account " + process.getConfirmationCode() + "` in the minecraft server to link your accounts. This process will " +
+				   "expire in " + (LinkProcess.confirmationTimeout(plugin) / 60000) + " minutes.";
 		});
 		
 		addCommand("view-profile", "Displays a user's profile.", false, DefaultMemberPermissions.enabledFor(Permission.ADMINISTRATOR),
@@ -72,7 +100,7 @@ public class DiscordBot extends ListenerAdapter implements Listener
 			Member member = event.getOption("user").getAsMember();
 			User user = User.getByPlayerDiscordID(plugin, member.getIdLong());
 			if (user == null)
-				event.reply("This person hasn't linked their minecraft account.").queue();
+				return "This person hasn't linked their minecraft account.";
 			else
 			{
 				StringBuilder builder = new StringBuilder();
@@ -85,10 +113,25 @@ public class DiscordBot extends ListenerAdapter implements Listener
 				}
 				if (roles.length == 0)
 					builder.append("\nNone.");
-				event.reply(builder.toString()).setEphemeral(true).queue();
+				return builder.toString();
 			}
 		}, new OptionData(OptionType.USER, "user", "The user who's profile you want to view.", true));
 		
+		registerCommands();
+		refreshGuild();
+	}
+	
+	/**
+	 * Looks up the discord server set in the config
+	 * <p>
+	 *     Called when the bot starts, and when the config is reloaded with a different guild-id.
+	 * </p>
+	 */
+	public void refreshGuild()
+	{
+		if (jda == null)
+			return;
+		memberCache.clear();
 		guild = jda.getGuildById(plugin.getConfig().getLong(GUILD_ID));
 		if (guild == null)
 		{
@@ -96,6 +139,17 @@ public class DiscordBot extends ListenerAdapter implements Listener
 			DiscordSync.announceToAdmins("Could not retrieve discord server, make sure the guild-id is properly set in the config. Once the bot is running in your discord server you can run the " +
 										 "§b/get-guild-id§r command in your server to get the id.");
 		}
+		else
+			plugin.syncPipeline().resumeDeferred();
+	}
+	
+	/**
+	 * Provides the cache of guild members
+	 * @return
+	 */
+	public MemberCache memberCache()
+	{
+		return memberCache;
 	}
 	
 	/**
@@ -120,91 +174,190 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	}
 	
 	/**
-	 * Starts the bot.
+	 * Provides a future that completes once the bot is connected and the guild has been looked up
+	 * <p>
+	 *     Completes on the main thread, and completes exceptionally if the bot fails to start or is stopped first. Each
+	 *     start of the bot gets a new future.
+	 * </p>
+	 * @return
+	 */
+	public CompletableFuture<Void> ready()
+	{
+		return ready;
+	}
+	
+	/**
+	 * Runs a task on the main thread once the bot has finished starting
+	 * <p>
+	 *     Runs whether or not the bot managed to connect, and runs straight away if the bot isn't currently starting.
+	 * </p>
+	 * @param task
+	 */
+	public void afterStartup(Runnable task)
+	{
+		if (status == Status.LOADING)
+			ready.whenComplete((ignored, exception) -> plugin.syncPipeline().runOnMainThread(task));
+		else
+			plugin.syncPipeline().runOnMainThread(task);
+	}
+	
+	/**
+	 * Starts the bot
+	 * <p>
+	 *     Returns straight away, the connection to discord is made on a separate thread. The returned future completes
+	 *     when the bot is ready, or exceptionally if it couldn't connect within the connect-timeout.
+	 * </p>
+	 * @return
 	 */
-	public void start()
+	public synchronized CompletableFuture<Void> start()
 	{
 		if (!status.canStart())
 			throw new IllegalStateException("Can't start discord bot in its current state.");
 		
-		boolean started = false;
+		plugin.getLogger().log(Level.INFO, "Starting discord bot.");
+		status = Status.LOADING;
+		CompletableFuture<Void> ready = new CompletableFuture<>();
+		this.ready = ready;
+		String token = plugin.getConfig().getString(TOKEN);
+		commandPool = Executors.newFixedThreadPool(COMMAND_THREADS, runnable ->
+		{
+			Thread thread = new Thread(runnable, "DiscordSync-Commands");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ready.orTimeout(Math.max(1, plugin.getConfig().getLong(CONNECT_TIMEOUT, 30)), TimeUnit.SECONDS).whenComplete((ignored, exception) ->
+		{
+			if (exception != null)
+				startFailed(ready, exception);
+		});
+		
+		//logging in contacts discord, so it mustn't hold up the server
+		Thread thread = new Thread(() -> connect(token, ready), "DiscordSync-BotStart");
+		thread.setDaemon(true);
+		thread.start();
+		return ready;
+	}
+	
+	private void connect(String token, CompletableFuture<Void> ready)
+	{
+		JDA jda;
 		try
 		{
-			plugin.getLogger().log(Level.INFO, "Starting discord bot.");
-			jda = JDABuilder.createDefault(plugin.getConfig().getString(TOKEN)).addEventListeners(this).build();
-			status = Status.LOADING;
-			while (jda.getStatus() != JDA.Status.CONNECTED && status == Status.LOADING)
+			//each attempt listens for its own ready event, so a bot from an earlier attempt can't complete this one
+			jda = connector.connect(token, this, new ReadyListener(ready));
+		}
+		catch (RuntimeException exception)
+		{
+			ready.completeExceptionally(exception);
+			return;
+		}
+		
+		synchronized (this)
+		{
+			//the bot may have been stopped or timed out while we were logging in
+			if (this.ready != ready || ready.isDone())
 			{
-				try
-				{
-					jda.awaitReady();
-				}
-				catch (InterruptedException e)
-				{
-					//ignore interruptions
-				}
-				catch (IllegalStateException e)
-				{
-					e.printStackTrace();
-					status = Status.LOAD_ERROR;
-				}
+				jda.shutdownNow();
+				return;
 			}
-			//make sure we didn't encounter an error while loading
-			if (status == Status.LOADING)
+			this.jda = jda;
+		}
+	}
+	
+	private void botReady(JDA jda, CompletableFuture<Void> ready)
+	{
+		plugin.syncPipeline().runOnMainThread(() ->
+		{
+			synchronized (this)
 			{
+				if (this.ready != ready || ready.isDone())
+					return;
+				//the ready event can arrive before the login call has returned
+				this.jda = jda;
 				status = Status.RUNNING;
-				plugin.getLogger().log(Level.INFO, "Discord bot is running.");
-				DiscordSync.announceToAdmins("Discord bot is running.");
-				started = true;
+			}
+			plugin.getLogger().log(Level.INFO, "Discord bot is running.");
+			DiscordSync.announceToAdmins("Discord bot is running.");
+			botStarted();
+			ready.complete(null);
+			//anything that couldn't be sent while the bot was offline can go now
+			plugin.discordRoleQueue().requeueHeld();
+		});
+	}
+	
+	private void startFailed(CompletableFuture<Void> ready, Throwable exception)
+	{
+		//stopped on purpose, stop() takes care of shutting the bot down
+		if (exception instanceof CancellationException)
+			return;
+		JDA failedJDA;
+		synchronized (this)
+		{
+			if (this.ready != ready || status != Status.LOADING)
+				return;
+			if (exception instanceof InvalidTokenException || exception instanceof IllegalArgumentException)
+			{
+				status = Status.INVALID_TOKEN;
+				plugin.getLogger().log(Level.WARNING, "Discord bot token is invalid, make sure the token is properly set in the config file.");
 			}
 			else
 			{
-				plugin.getLogger().log(Level.INFO, "Could not start discord bot.");
-				DiscordSync.announceToAdmins("An error occurred while starting the discord bot, check server console for details.");
-				jda = null;
+				status = Status.LOAD_ERROR;
+				if (exception instanceof TimeoutException)
+					plugin.getLogger().log(Level.WARNING, "Could not start discord bot, timed out connecting to discord.");
+				else
+					plugin.getLogger().log(Level.WARNING, "Could not start discord bot.", exception);
 			}
-		}
-		catch (InvalidTokenException | IllegalArgumentException exception)
-		{
-			status = Status.INVALID_TOKEN;
-			plugin.getLogger().log(Level.WARNING, "Discord bot token is invalid, make sure the token is properly set in the config file.");
-			DiscordSync.announceToAdmins("Discord bot token is invalid, make sure the token is properly set in the config file.");
+			failedJDA = jda;
 			jda = null;
+			commandPool.shutdown();
+			commandPool = null;
 		}
-		if (started)
-			botStarted();
+		if (failedJDA != null)
+			failedJDA.shutdownNow();
+		String message = status == Status.INVALID_TOKEN ? "Discord bot token is invalid, make sure the token is properly set in the config file." :
+						 "An error occurred while starting the discord bot, check server console for details.";
+		plugin.syncPipeline().runOnMainThread(() -> DiscordSync.announceToAdmins(message));
+	}
+	
+	private static CompletableFuture<Void> failedReady()
+	{
+		return CompletableFuture.failedFuture(new IllegalStateException("Discord bot is not running."));
 	}
 	
 	/**
 	 * Stops the bot
 	 */
-	public void stop()
+	public synchronized void stop()
 	{
 		if (!status.canStop())
 			return;
 		
+		ready.completeExceptionally(new CancellationException("Discord bot was stopped."));
+		if (commandPool != null)
+		{
+			commandPool.shutdown();
+			commandPool = null;
+		}
 		if (jda != null)
 		{
 			plugin.getLogger().log(Level.INFO, "Shutting down discord bot.");
-			jda.shutdownNow();
 			status = Status.SHUTTING_DOWN;
-			while (jda.getStatus() != JDA.Status.SHUTDOWN)
+			//let requests that are already queued finish, but don't hold the server up for long if discord is slow
+			jda.shutdown();
+			try
 			{
-				try
-				{
-					// Allow at most 2 seconds for remaining requests to finish
-					if (!jda.awaitShutdown(Duration.ofSeconds(2)))
-					{
-						jda.shutdownNow(); // Cancel all remaining requests
-						break;
-					}
-				}
-				catch (InterruptedException e)
-				{
-					//ignore interruptions
-				}
+				if (!jda.awaitShutdown(Duration.ofSeconds(2)))
+					jda.shutdownNow();
+			}
+			catch (InterruptedException e)
+			{
+				jda.shutdownNow();
+				Thread.currentThread().interrupt();
 			}
 			jda = null;
+			guild = null;
+			memberCache.clear();
 			plugin.getLogger().log(Level.INFO, "Discord bot is shutdown.");
 			DiscordSync.announceToAdmins("Discord bot is shutdown.");
 		}
@@ -215,7 +368,7 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	{
 		NOT_RUNNING(true, false, true, "Discord bot is not currently running."),
 		LOAD_ERROR(true, false, true, "An error occurred while loading discord bot, check console for details."),
-		LOADING(false, false, false, "Bot is loading."),
+		LOADING(false, true, false, "Bot is loading."),
 		RUNNING(false, true, false, "Bot is running."),
 		SHUTTING_DOWN(false, false, false, "Bot is shutting down."),
 		INVALID_TOKEN(true, false, true, "Discord bot token is invalid, make sure token is properly set in config file.");
@@ -290,6 +443,9 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	
 	/**
 	 * Adds a new command to the bot
+	 * <p>
+	 *     Commands are only sent to discord once every command has been added, see {@link #registerCommands()}.
+	 * </p>
 	 * @param name
 	 * @param description
 	 * @param guildOnly whether the command can only be used in a discord server, or if it could be used
@@ -300,14 +456,71 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	 */
 	public void addCommand(String name, String description, boolean guildOnly, DefaultMemberPermissions permissions, CommandExecutor executor, OptionData... options)
 	{
-		jda.upsertCommand(name, description).setDefaultPermissions(permissions).setGuildOnly(guildOnly).addOptions(options).submit().whenComplete((command, exception) ->
+		commandDefinitions.add(Commands.slash(name, description).setDefaultPermissions(permissions).setGuildOnly(guildOnly).addOptions(options));
+		commandRoutes.put(name, executor);
+	}
+	
+	//commands being added while the bot starts, only touched from the main thread
+	final ArrayList<SlashCommandData> commandDefinitions = new ArrayList<>();
+	final HashMap<String, CommandExecutor> commandRoutes = new HashMap<>();
+	//replaced as a whole once every command has been added, so gateway threads always see a complete map
+	volatile Map<String, CommandExecutor> commandExecutors = Map.of();
+	
+	/**
+	 * Starts routing the added commands and sends them to discord if they have changed
+	 * <p>
+	 *     Commands are routed by name, so they work as soon as the bot is ready. They are sent to discord in a single
+	 *     bulk update, and only if they differ from what was last sent for this bot, which is remembered with a hash in
+	 *     commands.hash.
+	 * </p>
+	 */
+	private void registerCommands()
+	{
+		commandExecutors = Map.copyOf(commandRoutes);
+		ArrayList<SlashCommandData> definitions = new ArrayList<>(commandDefinitions);
+		commandRoutes.clear();
+		commandDefinitions.clear();
+		
+		File hashFile = new File(plugin.getDataFolder(), "commands.hash");
+		String hash = jda.getSelfUser().getApplicationIdLong() + ":" + hashCommands(definitions);
+		try
 		{
-			if (command != null)
-				commandExecutors.put(command.getIdLong(), executor);
-		});
+			if (hashFile.exists() && Files.readString(hashFile.toPath(), StandardCharsets.UTF_8).trim().equals(hash))
+				return;
+		}
+		catch (IOException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not read " + hashFile.getName() + ", commands will be sent to discord again.", exception);
+		}
+		
+		jda.updateCommands().addCommands(definitions).queue(commands ->
+		{
+			plugin.getLogger().log(Level.INFO, "Registered " + commands.size() + " discord commands.");
+			try
+			{
+				Files.writeString(hashFile.toPath(), hash, StandardCharsets.UTF_8);
+			}
+			catch (IOException exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not write " + hashFile.getName() + ", commands will be sent to discord again next time.", exception);
+			}
+		}, exception -> plugin.getLogger().log(Level.WARNING, "Could not register discord commands.", exception));
 	}
 	
-	HashMap<Long, CommandExecutor> commandExecutors = new HashMap<>();
+	private static String hashCommands(List<SlashCommandData> definitions)
+	{
+		try
+		{
+			java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+			for (SlashCommandData definition : definitions)
+				digest.update(definition.toData().toJson());
+			return HexFormat.of().formatHex(digest.digest());
+		}
+		catch (java.security.NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
 	
 	/**
 	 * Runs when a bot command is executed in discord
@@ -316,13 +529,201 @@ public class DiscordBot extends ListenerAdapter implements Listener
 	@Override
 	public void onSlashCommandInteraction(@NotNull SlashCommandInteractionEvent event)
 	{
-		CommandExecutor executor = commandExecutors.get(event.getCommandIdLong());
-		if (executor != null)
-			executor.execute(event);
+		CommandExecutor executor = commandExecutors.get(event.getName());
+		ExecutorService commandPool = this.commandPool;
+		if (executor == null || commandPool == null)
+			return;
+		
+		//acknowledge straight away so the interaction doesn't time out, then do the actual work off the gateway thread
+		event.deferReply(true).queue();
+		try
+		{
+			commandPool.execute(() ->
+			{
+				String reply;
+				long startTime = System.nanoTime();
+				try
+				{
+					reply = executor.execute(event);
+				}
+				catch (RuntimeException exception)
+				{
+					plugin.getLogger().log(Level.WARNING, "Discord command /" + event.getName() + " failed.", exception);
+					reply = "Something went wrong while running this command, check the server console for details.";
+				}
+				commandTimings.computeIfAbsent(event.getName(), name -> new SyncPipeline.StageTimings()).record(System.nanoTime() - startTime);
+				event.getHook().editOriginal(reply).queue();
+			});
+		}
+		catch (RejectedExecutionException exception)
+		{
+			event.getHook().editOriginal("The bot is shutting down, try again in a moment.").queue();
+		}
+	}
+	
+	/**
+	 * Gets how long each slash command has taken to run, by command name
+	 * @return
+	 */
+	public Map<String, SyncPipeline.StageTimings> commandTimings()
+	{
+		return Collections.unmodifiableMap(commandTimings);
+	}
+	
+	/**
+	 * Returns the number of HTTP requests the bot has made to discord
+	 * @return
+	 */
+	public long httpRequests()
+	{
+		return httpRequests.sum();
+	}
+	
+	/**
+	 * Returns the number of HTTP requests discord has rejected for exceeding a rate limit
+	 * @return
+	 */
+	public long rateLimitedRequests()
+	{
+		return rateLimitedRequests.sum();
+	}
+	
+	@Override
+	public void onHttpRequest(@NotNull HttpRequestEvent event)
+	{
+		requestMade(event.isRateLimit());
+	}
+	
+	/**
+	 * Counts an HTTP request made to discord
+	 * @param rateLimited
+	 */
+	void requestMade(boolean rateLimited)
+	{
+		httpRequests.increment();
+		if (rateLimited)
+			rateLimitedRequests.increment();
+	}
+	
+	/**
+	 * Checks if an event came from the guild that is being synced with
+	 * @param eventGuild
+	 * @return
+	 */
+	private boolean isSyncedGuild(Guild eventGuild)
+	{
+		return guild != null && eventGuild.getIdLong() == guild.getIdLong();
+	}
+	
+	@Override
+	public void onGuildMemberRoleAdd(@NotNull GuildMemberRoleAddEvent event)
+	{
+		if (isSyncedGuild(event.getGuild()))
+		{
+			memberCache.put(event.getMember());
+			plugin.roleUpdates().memberRolesChanged(event.getMember().getIdLong());
+		}
+	}
+	
+	@Override
+	public void onGuildMemberRoleRemove(@NotNull GuildMemberRoleRemoveEvent event)
+	{
+		if (isSyncedGuild(event.getGuild()))
+		{
+			memberCache.put(event.getMember());
+			plugin.roleUpdates().memberRolesChanged(event.getMember().getIdLong());
+		}
+	}
+	
+	@Override
+	public void onGuildMemberUpdate(@NotNull GuildMemberUpdateEvent event)
+	{
+		if (!isSyncedGuild(event.getGuild()))
+			return;
+		//JDA only sends the role add and remove events for members it has cached, which with the default cache policy is
+		//hardly anyone, so for everyone else this is the only sign that their roles have changed
+		Member member = event.getMember();
+		Member previous = memberCache.getIfCached(member.getIdLong());
+		memberCache.put(member);
+		if (previous == null || !previous.getRoles().equals(member.getRoles()))
+			plugin.roleUpdates().memberRolesChanged(member.getIdLong());
+	}
+	
+	@Override
+	public void onGuildMemberJoin(@NotNull GuildMemberJoinEvent event)
+	{
+		if (isSyncedGuild(event.getGuild()))
+			memberCache.put(event.getMember());
+	}
+	
+	@Override
+	public void onGuildMemberRemove(@NotNull GuildMemberRemoveEvent event)
+	{
+		if (isSyncedGuild(event.getGuild()))
+			memberCache.put(event.getUser().getIdLong(), null);
+	}
+	
+	/**
+	 * Waits for one connection attempt to finish connecting, or for discord to turn it away
+	 */
+	class ReadyListener implements net.dv8tion.jda.api.hooks.EventListener
+	{
+		final CompletableFuture<Void> ready;
+		
+		ReadyListener(CompletableFuture<Void> ready)
+		{
+			this.ready = ready;
+		}
+		
+		@Override
+		public void onEvent(@NotNull net.dv8tion.jda.api.events.GenericEvent event)
+		{
+			if (event instanceof ReadyEvent)
+				ready(event.getJDA());
+			//logging in returns before the token is checked, a bad one only shows up as discord closing the connection
+			else if (event instanceof ShutdownEvent shutdown)
+			{
+				if (shutdown.getCloseCode() == CloseCode.AUTHENTICATION_FAILED)
+					ready.completeExceptionally(new InvalidTokenException("Discord rejected the bot token."));
+				else
+					ready.completeExceptionally(new IllegalStateException("Discord closed the connection with code " + shutdown.getCode() + "."));
+			}
+		}
+		
+		/**
+		 * Finishes starting the bot once it is fully connected
+		 * @param jda
+		 */
+		void ready(JDA jda)
+		{
+			botReady(jda, ready);
+		}
+	}
+	
+	interface Connector
+	{
+		/**
+		 * Logs in to discord
+		 * <p>
+		 *     Returns once the bot has logged in, a ready event is sent to the listeners once it is fully connected.
+		 * </p>
+		 * @param token
+		 * @param listeners
+		 * @return
+		 */
+		JDA connect(String token, Object... listeners);
 	}
 	
 	interface CommandExecutor
 	{
-		void execute(SlashCommandInteractionEvent event);
+		/**
+		 * Runs the command
+		 * <p>
+		 *     Runs on the command thread pool after the reply has been deferred, so it is free to block.
+		 * </p>
+		 * @param event
+		 * @return the reply to show the user
+		 */
+		String execute(SlashCommandInteractionEvent event);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,493 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.exceptions.*;
+import net.luckperms.api.*;
+import net.luckperms.api.event.*;
+import net.luckperms.api.event.node.*;
+import net.luckperms.api.node.*;
+import net.luckperms.api.node.types.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Pushes LuckPerms group changes to discord
+ * <p>
+ *     Changes are queued per member and merged, so any number of group changes to one member become a single
+ *     modifyMemberRoles request, and changes that cancel each other out or that the member already matches don't
+ *     send a request at all. Requests are sent one at a time from a single thread, since they all share the guild's
+ *     member rate limit bucket, which lets JDA's rate limiter pace them to the bucket instead of running into 429s.
+ * </p>
+ * <p>
+ *     When the plugin is disabled the queue stops taking new changes and sends what it has left, up to the
+ *     shutdown-timeout. Anything that couldn't be sent by then, or while the bot wasn't connected, is written to a
+ *     journal file and queued again the next time the plugin is enabled.
+ * </p>
+ */
+public class DiscordRoleQueue
+{
+	public static final String BATCH_DELAY = "discord-role-updates.batch-delay";
+	public static final String SHUTDOWN_TIMEOUT = "discord-role-updates.shutdown-timeout";
+	
+	//added to the order queue to wake the worker up when shutting down, discord ID 0 is never queued otherwise
+	static final long WAKE_UP = 0;
+	
+	final DiscordSync plugin;
+	final File journal;
+	final ConcurrentHashMap<Long, PendingChange> pending = new ConcurrentHashMap<>();
+	final LinkedBlockingQueue<Long> order = new LinkedBlockingQueue<>();
+	//changes that couldn't be sent because the bot wasn't connected, queued again once it is
+	final ConcurrentHashMap<Long, PendingChange> held = new ConcurrentHashMap<>();
+	final long batchDelay;
+	final long shutdownTimeout;
+	final AtomicLong requestsSent = new AtomicLong();
+	final AtomicLong requestsFailed = new AtomicLong();
+	final ArrayList<EventSubscription<?>> subscriptions = new ArrayList<>();
+	Thread worker;
+	volatile boolean running = false;
+	volatile boolean stopping = false;
+	//the change the worker is currently sending, so it can be journaled if the worker is stopped part way through
+	volatile InFlight inFlight = null;
+	
+	public DiscordRoleQueue(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		journal = new File(plugin.getDataFolder(), "role-journal.txt");
+		batchDelay = Math.max(0, plugin.getConfig().getLong(BATCH_DELAY, 500));
+		shutdownTimeout = Math.max(0, plugin.getConfig().getLong(SHUTDOWN_TIMEOUT, 10));
+	}
+	
+	/**
+	 * Starts the worker thread and begins listening for LuckPerms group changes
+	 * <p>
+	 *     Changes left in the journal from the last shutdown are queued again.
+	 * </p>
+	 */
+	public void enable()
+	{
+		running = true;
+		readJournal();
+		requeueHeld();
+		worker = new Thread(this::run, "DiscordSync-DiscordRoles");
+		worker.setDaemon(true);
+		worker.start();
+		
+		EventBus eventBus = LuckPermsProvider.get().getEventBus();
+		subscriptions.add(eventBus.subscribe(plugin, NodeAddEvent.class, event -> onNodeChange(event, event.getNode(), true)));
+		subscriptions.add(eventBus.subscribe(plugin, NodeRemoveEvent.class, event -> onNodeChange(event, event.getNode(), false)));
+	}
+	
+	private void onNodeChange(NodeMutateEvent event, Node node, boolean added)
+	{
+		//only plain, permanent group memberships are synced, the same as what the sync from discord manages
+		if (!event.isUser() || !(node instanceof InheritanceNode inheritanceNode) || !RoleDiff.isSynced(node))
+			return;
+		Role role = Role.getRoleByGroup(inheritanceNode.getGroupName());
+		if (role == null)
+			return;
+		UUID minecraftUUID = ((net.luckperms.api.model.user.User)event.getTarget()).getUniqueId();
+		UserIndex.Entry entry = plugin.userIndex().get(minecraftUUID);
+		if (entry == null || !entry.linked())
+			return;
+		queue(entry.discordID(), role.discordRoleID, added);
+	}
+	
+	/**
+	 * Queues a role to be given to or taken from a guild member
+	 * @param discordID
+	 * @param discordRoleID
+	 * @param add true to give the role, false to take it away
+	 */
+	public void queue(long discordID, long discordRoleID, boolean add)
+	{
+		if (!running || discordID == 0)
+			return;
+		//in a network only the server that owns the bot sends role changes
+		if (!plugin.cluster().isLeader())
+		{
+			plugin.cluster().forwardRoleChange(discordID, discordRoleID, add);
+			return;
+		}
+		boolean[] created = {false};
+		pending.compute(discordID, (id, change) ->
+		{
+			if (change == null)
+			{
+				change = new PendingChange(System.currentTimeMillis() + batchDelay);
+				created[0] = true;
+			}
+			change.merge(discordRoleID, add);
+			return change;
+		});
+		if (created[0])
+			order.add(discordID);
+	}
+	
+	private void run()
+	{
+		while (true)
+		{
+			long discordID;
+			PendingChange change;
+			try
+			{
+				//once we've stopped taking changes, carry on until everything already queued has been sent
+				if (!running && order.isEmpty())
+					break;
+				discordID = order.take();
+				if (discordID == WAKE_UP)
+					continue;
+				//give any further changes to this member a moment to arrive so they go in the same request, unless we're
+				//trying to finish up
+				change = pending.get(discordID);
+				if (change != null && running)
+				{
+					long wait = change.readyTime - System.currentTimeMillis();
+					if (wait > 0)
+						Thread.sleep(wait);
+				}
+				awaitBot();
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			
+			//once removed, any new change to this member starts a new batch
+			change = pending.remove(discordID);
+			if (change != null && !change.isEmpty())
+			{
+				inFlight = new InFlight(discordID, change);
+				try
+				{
+					send(discordID, change);
+				}
+				catch (RuntimeException exception)
+				{
+					//if we're being stopped the change is journaled instead
+					if (stopping)
+						break;
+					requestsFailed.incrementAndGet();
+					plugin.getLogger().log(Level.WARNING, "Failed to update discord roles for " + discordID + ".", exception);
+				}
+				inFlight = null;
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the bot to finish connecting if it is currently starting
+	 * @throws InterruptedException
+	 */
+	private void awaitBot() throws InterruptedException
+	{
+		try
+		{
+			plugin.bot().ready().get();
+		}
+		catch (ExecutionException | CancellationException ignored)
+		{
+			//the bot isn't running, send() will hold the change until it is
+		}
+	}
+	
+	private void send(long discordID, PendingChange change)
+	{
+		Guild guild = plugin.bot().guild;
+		if (guild == null)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not update discord roles for " + discordID + " yet, the bot isn't connected to the discord server.");
+			hold(discordID, change);
+			return;
+		}
+		Member member;
+		try
+		{
+			member = plugin.bot().memberCache().get(discordID);
+		}
+		catch (MemberCache.UnavailableException e)
+		{
+			//the bot went down since the check above, hold the change until it is back
+			if (plugin.bot().guild == null)
+			{
+				hold(discordID, change);
+				return;
+			}
+			throw e;
+		}
+		if (member == null)
+			return;
+		
+		//skip anything the member already matches, so changes that came from discord aren't sent back
+		List<net.dv8tion.jda.api.entities.Role> currentRoles = member.getRoles();
+		ArrayList<net.dv8tion.jda.api.entities.Role> rolesToAdd = new ArrayList<>();
+		ArrayList<net.dv8tion.jda.api.entities.Role> rolesToRemove = new ArrayList<>();
+		for (long discordRoleID : change.rolesToAdd)
+		{
+			net.dv8tion.jda.api.entities.Role discordRole = guild.getRoleById(discordRoleID);
+			if (discordRole != null && !currentRoles.contains(discordRole))
+				rolesToAdd.add(discordRole);
+		}
+		for (long discordRoleID : change.rolesToRemove)
+		{
+			net.dv8tion.jda.api.entities.Role discordRole = guild.getRoleById(discordRoleID);
+			if (discordRole != null && currentRoles.contains(discordRole))
+				rolesToRemove.add(discordRole);
+		}
+		if (rolesToAdd.isEmpty() && rolesToRemove.isEmpty())
+			return;
+		
+		try
+		{
+			//JDA waits for the route's rate limit bucket before sending, blocking here keeps us to one request at a time
+			plugin.blocking().call(BlockingExecutor.Kind.DISCORD, () -> guild.modifyMemberRoles(member, rolesToAdd, rolesToRemove).reason("LuckPerms group change").complete());
+			requestsSent.incrementAndGet();
+		}
+		catch (ErrorResponseException | PermissionException exception)
+		{
+			requestsFailed.incrementAndGet();
+			plugin.getLogger().log(Level.WARNING, "Could not update discord roles for " + member.getEffectiveName() + ": " + exception.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the number of members with role changes waiting to be sent
+	 * @return
+	 */
+	public int pendingCount()
+	{
+		return pending.size();
+	}
+	
+	/**
+	 * Returns the number of role update requests sent to discord
+	 * @return
+	 */
+	public long requestsSent()
+	{
+		return requestsSent.get();
+	}
+	
+	/**
+	 * Returns the number of role update requests discord rejected
+	 * @return
+	 */
+	public long requestsFailed()
+	{
+		return requestsFailed.get();
+	}
+	
+	/**
+	 * Keeps a change that couldn't be sent until the bot is connected again
+	 * @param discordID
+	 * @param change
+	 */
+	private void hold(long discordID, PendingChange change)
+	{
+		held.merge(discordID, change, PendingChange::then);
+	}
+	
+	/**
+	 * Queues every held change again
+	 * <p>
+	 *     Called when the bot connects, and when the queue is enabled.
+	 * </p>
+	 */
+	public void requeueHeld()
+	{
+		for (Long discordID : new ArrayList<>(held.keySet()))
+		{
+			PendingChange change = held.remove(discordID);
+			if (change == null)
+				continue;
+			for (long discordRoleID : change.rolesToAdd)
+				queue(discordID, discordRoleID, true);
+			for (long discordRoleID : change.rolesToRemove)
+				queue(discordID, discordRoleID, false);
+		}
+	}
+	
+	/**
+	 * Stops listening for group changes and sends whatever is left in the queue
+	 * <p>
+	 *     Blocks for at most the shutdown-timeout, anything not sent by then is written to the journal.
+	 * </p>
+	 */
+	public void shutdown()
+	{
+		running = false;
+		for (EventSubscription<?> subscription : subscriptions)
+			subscription.close();
+		subscriptions.clear();
+		if (worker != null)
+		{
+			order.add(WAKE_UP);
+			try
+			{
+				worker.join(TimeUnit.SECONDS.toMillis(shutdownTimeout) + 1);
+				if (worker.isAlive())
+				{
+					plugin.getLogger().log(Level.WARNING, "Ran out of time sending discord role updates, " + pending.size() + " members will be updated when the plugin is next enabled.");
+					stopping = true;
+					worker.interrupt();
+					worker.join(1000);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				stopping = true;
+				worker.interrupt();
+				Thread.currentThread().interrupt();
+			}
+		}
+		writeJournal();
+	}
+	
+	/**
+	 * Writes every change that hasn't been sent to the journal
+	 * <p>
+	 *     One line per role, later lines win if a role appears twice.
+	 * </p>
+	 */
+	private void writeJournal()
+	{
+		//oldest first, so that replaying the journal ends up with the most recent change to each role
+		ArrayList<Map.Entry<Long, PendingChange>> changes = new ArrayList<>(held.entrySet());
+		InFlight inFlight = this.inFlight;
+		if (inFlight != null)
+			changes.add(Map.entry(inFlight.discordID, inFlight.change));
+		changes.addAll(pending.entrySet());
+		
+		try
+		{
+			if (changes.isEmpty())
+			{
+				Files.deleteIfExists(journal.toPath());
+				return;
+			}
+			try (BufferedWriter writer = Files.newBufferedWriter(journal.toPath(), StandardCharsets.UTF_8))
+			{
+				int lines = 0;
+				for (Map.Entry<Long, PendingChange> entry : changes)
+				{
+					for (long discordRoleID : entry.getValue().rolesToAdd)
+					{
+						writer.write(entry.getKey() + "\t" + discordRoleID + "\t+");
+						writer.newLine();
+						lines++;
+					}
+					for (long discordRoleID : entry.getValue().rolesToRemove)
+					{
+						writer.write(entry.getKey() + "\t" + discordRoleID + "\t-");
+						writer.newLine();
+						lines++;
+					}
+				}
+				plugin.getLogger().log(Level.INFO, "Saved " + lines + " unsent discord role updates to " + journal.getName() + ".");
+			}
+		}
+		catch (IOException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not save unsent discord role updates, they will be lost.", exception);
+		}
+	}
+	
+	/**
+	 * Reads the journal left from the last shutdown into the held changes, and deletes it
+	 */
+	private void readJournal()
+	{
+		if (!journal.exists())
+			return;
+		int lines = 0;
+		try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.split("\t");
+				if (parts.length != 3)
+					continue;
+				try
+				{
+					long discordID = Long.parseLong(parts[0]);
+					long discordRoleID = Long.parseLong(parts[1]);
+					held.computeIfAbsent(discordID, id -> new PendingChange(0)).merge(discordRoleID, parts[2].equals("+"));
+					lines++;
+				}
+				catch (NumberFormatException ignored)
+				{
+					//a partially written line is skipped
+				}
+			}
+		}
+		catch (IOException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not read unsent discord role updates from " + journal.getName() + ".", exception);
+			return;
+		}
+		if (!journal.delete())
+			plugin.getLogger().log(Level.WARNING, "Could not delete " + journal.getName() + ", its role updates may be sent twice.");
+		plugin.getLogger().log(Level.INFO, "Queued " + lines + " discord role updates left over from the last shutdown.");
+	}
+	
+	record InFlight(long discordID, PendingChange change)
+	{
+	
+	}
+	
+	/**
+	 * The role changes waiting to be sent for one member
+	 */
+	static class PendingChange
+	{
+		final long readyTime;
+		final Set<Long> rolesToAdd = new HashSet<>();
+		final Set<Long> rolesToRemove = new HashSet<>();
+		
+		PendingChange(long readyTime)
+		{
+			this.readyTime = readyTime;
+		}
+		
+		void merge(long discordRoleID, boolean add)
+		{
+			//the most recent change to a role wins
+			if (add)
+			{
+				rolesToRemove.remove(discordRoleID);
+				rolesToAdd.add(discordRoleID);
+			}
+			else
+			{
+				rolesToAdd.remove(discordRoleID);
+				rolesToRemove.add(discordRoleID);
+			}
+		}
+		
+		boolean isEmpty()
+		{
+			return rolesToAdd.isEmpty() && rolesToRemove.isEmpty();
+		}
+		
+		/**
+		 * Applies a later change on top of this one
+		 * @param later
+		 * @return this change
+		 */
+		PendingChange then(PendingChange later)
+		{
+			for (long discordRoleID : later.rolesToAdd)
+				merge(discordRoleID, true);
+			for (long discordRoleID : later.rolesToRemove)
+				merge(discordRoleID, false);
+			return this;
+		}
+	}
+}
\ No newline at end of file
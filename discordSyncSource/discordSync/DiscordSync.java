@@ -1,18 +1,49 @@
 package discordSync;
 
+import net.dv8tion.jda.api.entities.*;
+import net.luckperms.api.*;
 import org.bukkit.*;
 import org.bukkit.command.*;
 import org.bukkit.entity.*;
 import org.bukkit.event.*;
 import org.bukkit.event.player.*;
+import org.bukkit.plugin.*;
 import org.bukkit.plugin.java.*;
 import org.jetbrains.annotations.*;
 
 import java.io.*;
+import java.util.*;
+import java.util.logging.*;
 
 public class DiscordSync extends JavaPlugin implements Listener
 {
 	final DiscordBot bot = new DiscordBot(this);
+	final UserIndex userIndex = new UserIndex();
+	BlockingExecutor blocking;
+	UserStore userStore;
+	SyncPipeline syncPipeline;
+	RoleUpdateCoalescer roleUpdates;
+	DiscordRoleQueue discordRoleQueue;
+	OfflineReconciler offlineReconciler;
+	Cluster cluster;
+	Metrics metrics;
+	
+	public DiscordSync()
+	{
+		super();
+	}
+	
+	/**
+	 * Creates the plugin outside of a running server, such as in the load simulator
+	 * @param loader
+	 * @param description
+	 * @param dataFolder
+	 * @param file
+	 */
+	DiscordSync(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file)
+	{
+		super(loader, description, dataFolder, file);
+	}
 	
 	@Override
 	public void onEnable()
@@ -23,38 +54,92 @@ public class DiscordSync extends JavaPlugin implements Listener
 			saveDefaultConfig();
 		}
 		
+		User.loadTemplate(this);
+		blocking = new BlockingExecutor(this);
+		cluster = new Cluster(this);
+		userStore = UserStore.create(this);
+		
+		//index existing users so lookups by name or discord ID don't have to read every file
+		userIndex.build(this);
+		getLogger().log(Level.INFO, "Indexed " + userIndex.size() + " users.");
+		
+		syncPipeline = new SyncPipeline(this);
+		roleUpdates = new RoleUpdateCoalescer(this);
+		discordRoleQueue = new DiscordRoleQueue(this);
+		offlineReconciler = new OfflineReconciler(this);
+		metrics = new Metrics(this);
+		
 		bot.enable();
-		bot.start();
 		
 		Role.loadRoleList(this);
 		
-		//ensure userData directory exists
-		if (!userDataDirectory().exists() || !userDataDirectory().isDirectory())
-			userDataDirectory().mkdir();
-		
 		Bukkit.getPluginManager().registerEvents(this, this);
 		
+		//push LuckPerms group changes to discord
+		discordRoleQueue.enable();
+		
+		//start the bot, unless another server in the network owns it
+		cluster.enable();
+		
+		LinkProcess.loadLimits(this);
 		//cull expired link processes each second
 		Bukkit.getScheduler().scheduleSyncRepeatingTask(this, LinkProcess::cull, 0, 20);
 		
-		getCommand("link-account").setExecutor(new LinkProcess.LinkAccountCommand());
+		getCommand("link-account").setExecutor(new LinkProcess.LinkAccountCommand(this));
 		getCommand("view-profile").setExecutor(new User.ViewProfileCommand(this));
 		getCommand("list-profiles").setExecutor(new ListProfilesCommand(this));
+		getCommand("discordsync").setExecutor(new DiscordSyncCommand(this));
 		
-		//perform sync for all players currently on the server
-		for (Player player : Bukkit.getOnlinePlayers())
-		{
-			User user = new User(this, player.getUniqueId());
-			user.sync();
-		}
+		metrics.enable();
+		
+		//sync all players currently on the server in one go, such as after a reload, once the bot has connected
+		if (cluster.isLeader())
+			bot.afterStartup(() -> new BulkReconciler(this).start(Bukkit.getOnlinePlayers()));
+		else
+			for (Player player : Bukkit.getOnlinePlayers())
+				cluster.forwardSync(player);
+	}
+	
+	/**
+	 * Starts the discord bot, and the background work that needs it
+	 * <p>
+	 *     Called when the plugin is enabled, or in a network when this server takes the bot over from another server.
+	 * </p>
+	 */
+	void startBotServices()
+	{
+		if (bot.status().canStart())
+			bot.start();
+		//keep offline players' groups in line with discord too
+		offlineReconciler.enable();
+	}
+	
+	/**
+	 * Stops the discord bot, and the background work that needs it, once another server in the network has taken it over
+	 * <p>
+	 *     Can be called from any thread, and only returns once the bot has stopped.
+	 * </p>
+	 */
+	void stopBotServices()
+	{
+		offlineReconciler.shutdown();
+		bot.stop();
+		//role changes that were waiting for the bot are passed on to the server that has it now
+		discordRoleQueue.requeueHeld();
 	}
 	
 	@EventHandler
 	public void onPlayerJoin(PlayerJoinEvent event)
 	{
-		//perform sync for players joining the server
+		//in a network the server that owns the bot does the sync
+		if (!cluster.isLeader())
+		{
+			cluster.forwardSync(event.getPlayer());
+			return;
+		}
+		//queue a sync for players joining the server, the sync itself happens off the main thread
 		User user = new User(this, event.getPlayer().getUniqueId());
-		user.sync();
+		bot.afterStartup(user::sync);
 	}
 	
 	/**
@@ -67,18 +152,196 @@ public class DiscordSync extends JavaPlugin implements Listener
 	}
 	
 	/**
-	 * Gets the folder that user data files are stored in
+	 * Provides the pipeline that user syncs are performed on
+	 * @return
+	 */
+	public SyncPipeline syncPipeline()
+	{
+		return syncPipeline;
+	}
+	
+	/**
+	 * Provides the coalescer that pushes discord role changes to LuckPerms
+	 * @return
+	 */
+	public RoleUpdateCoalescer roleUpdates()
+	{
+		return roleUpdates;
+	}
+	
+	/**
+	 * Provides the queue that pushes LuckPerms group changes to discord
+	 * @return
+	 */
+	public DiscordRoleQueue discordRoleQueue()
+	{
+		return discordRoleQueue;
+	}
+	
+	/**
+	 * Provides the background reconciler for offline users
+	 * @return
+	 */
+	public OfflineReconciler offlineReconciler()
+	{
+		return offlineReconciler;
+	}
+	
+	/**
+	 * Provides the coordination with other servers in the network
+	 * @return
+	 */
+	public Cluster cluster()
+	{
+		return cluster;
+	}
+	
+	/**
+	 * Provides the plugin's metrics
+	 * @return
+	 */
+	public Metrics metrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Provides the executor that blocking Discord, LuckPerms and storage calls go through
+	 * @return
+	 */
+	public BlockingExecutor blocking()
+	{
+		return blocking;
+	}
+	
+	/**
+	 * Provides the store that user data is kept in
+	 * @return
+	 */
+	public UserStore userStore()
+	{
+		return userStore;
+	}
+	
+	/**
+	 * Provides the index of all known users
+	 * @return
+	 */
+	public UserIndex userIndex()
+	{
+		return userIndex;
+	}
+	
+	/**
+	 * Gets the folder that user data files are stored in when using the yaml user store
+	 * <p>
+	 *     In a network this is in the shared directory.
+	 * </p>
 	 * @return
 	 */
 	public File userDataDirectory()
 	{
+		if (cluster != null && cluster.enabled())
+			return new File(cluster.sharedDirectory(), "userData");
 		return new File(getDataFolder() + "/userData");
 	}
 	
 	@Override
 	public void onDisable()
 	{
+		if (metrics != null)
+			metrics.shutdown();
+		//stop taking on new work first, then send the role updates that are left while the bot is still connected
+		if (offlineReconciler != null)
+			offlineReconciler.shutdown();
+		if (roleUpdates != null)
+			roleUpdates.shutdown();
+		if (syncPipeline != null)
+			syncPipeline.shutdown();
+		if (discordRoleQueue != null)
+			discordRoleQueue.shutdown();
 		bot.stop();
+		if (cluster != null)
+			cluster.shutdown();
+		if (userStore != null)
+			userStore.close();
+		if (blocking != null)
+			blocking.shutdown();
+	}
+	
+	/**
+	 * Re-reads the config file and applies any changes to the role list and bot settings
+	 * <p>
+	 *     The new role list replaces the old one all at once. The bot is only restarted if its token changed, and only
+	 *     online players who could be affected by a changed role mapping are resynced. Offline players pick up the
+	 *     changes the next time they are synced.
+	 * </p>
+	 * @return the number of players that were resynced
+	 */
+	public int reload()
+	{
+		String oldToken = getConfig().getString(DiscordBot.TOKEN);
+		long oldGuildID = getConfig().getLong(DiscordBot.GUILD_ID);
+		RoleRegistry oldRoles = Role.registry();
+		
+		reloadConfig();
+		Role.loadRoleList(this);
+		LinkProcess.loadLimits(this);
+		
+		//in a network only the server that owns the bot uses the bot settings
+		if (cluster.isLeader())
+		{
+			if (!Objects.equals(oldToken, getConfig().getString(DiscordBot.TOKEN)))
+				bot.reload();
+			else if (oldGuildID != getConfig().getLong(DiscordBot.GUILD_ID))
+				bot.refreshGuild();
+		}
+		
+		RoleRegistry.MappingChanges changes = oldRoles.changesTo(Role.registry());
+		if (changes.isEmpty())
+			return 0;
+		int resynced = 0;
+		for (Player player : Bukkit.getOnlinePlayers())
+		{
+			if (isAffected(player.getUniqueId(), changes))
+			{
+				if (cluster.isLeader())
+					syncPipeline.submitRoleUpdate(new User(this, player.getUniqueId()));
+				else
+					cluster.forwardSync(player);
+				resynced++;
+			}
+		}
+		return resynced;
+	}
+	
+	/**
+	 * Checks if a user has any of the discord roles or groups whose mappings changed
+	 * @param minecraftUUID
+	 * @param changes
+	 * @return
+	 */
+	private boolean isAffected(UUID minecraftUUID, RoleRegistry.MappingChanges changes)
+	{
+		UserIndex.Entry entry = userIndex.get(minecraftUUID);
+		if (entry == null || !entry.linked())
+			return false;
+		
+		//if we don't know the member's roles then resync them to be safe
+		Member member = bot.memberCache().getIfCached(entry.discordID());
+		if (member == null)
+			return true;
+		for (net.dv8tion.jda.api.entities.Role discordRole : member.getRoles())
+			if (changes.discordRoleIDs().contains(discordRole.getIdLong()))
+				return true;
+		
+		net.luckperms.api.model.user.User user = LuckPermsProvider.get().getUserManager().getUser(minecraftUUID);
+		if (user == null)
+			return true;
+		for (String group : RoleDiff.currentGroups(user))
+			if (changes.groups().contains(group.toLowerCase(Locale.ROOT)))
+				return true;
+		return false;
 	}
 	
 	/**
@@ -94,8 +357,38 @@ public class DiscordSync extends JavaPlugin implements Listener
 		}
 	}
 	
+	public static class DiscordSyncCommand implements CommandExecutor
+	{
+		final DiscordSync plugin;
+		
+		public DiscordSyncCommand(DiscordSync plugin)
+		{
+			this.plugin = plugin;
+		}
+		
+		@Override
+		public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args)
+		{
+			if (args.length == 1 && args[0].equalsIgnoreCase("reload"))
+			{
+				int resynced = plugin.reload();
+				sender.sendMessage("§6[DiscordSync]§b Reloaded the config with §6" + Role.roleCount() + "§b roles, resyncing §6" + resynced + "§b affected players.");
+				return true;
+			}
+			if (args.length == 1 && args[0].equalsIgnoreCase("stats"))
+			{
+				sender.sendMessage(plugin.metrics().summary().toArray(new String[0]));
+				return true;
+			}
+			sender.sendMessage("§6[DiscordSync]§b Usage: /" + label + " <reload|stats>");
+			return false;
+		}
+	}
+	
 	public static class ListProfilesCommand implements CommandExecutor
 	{
+		static final int PAGE_SIZE = 10;
+		
 		final DiscordSync plugin;
 		
 		public ListProfilesCommand(DiscordSync plugin)
@@ -106,13 +399,68 @@ public class DiscordSync extends JavaPlugin implements Listener
 		@Override
 		public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args)
 		{
-			User[] users = User.getUsers(plugin);
-			StringBuilder builder = new StringBuilder();
-			builder.append("§6[DiscordSync] Users: (MC Name: Linked)§r");
-			for (User user : users)
-				builder.append("\n").append(user.getLastSeenMinecraftName()).append(": ").append(user.isLinked() ? "Yes" : "No");
-			builder.append("\n§6Run the §b/view-profile <MC Name>§6 command to view more information about a profile.");
-			sender.sendMessage(builder.toString());
+			int page = 1;
+			int filterStart = 0;
+			if (args.length > 0)
+			{
+				try
+				{
+					page = Math.max(1, Integer.parseInt(args[0]));
+					filterStart = 1;
+				}
+				catch (NumberFormatException ignored)
+				{
+					//no page given, the first argument is the filter
+				}
+			}
+			String filter = String.join(" ", Arrays.copyOfRange(args, filterStart, args.length)).toLowerCase(Locale.ROOT);
+			int requestedPage = page;
+			
+			//served entirely from the user index, which keeps users in order, whether a user is linked comes from their
+			//stored discord ID
+			plugin.blocking().submit(() ->
+			{
+				int total;
+				Iterable<UserIndex.Entry> matches;
+				if (filter.isEmpty())
+				{
+					total = plugin.userIndex().listedCount();
+					matches = plugin.userIndex().listed();
+				}
+				else
+				{
+					ArrayList<UserIndex.Entry> filtered = new ArrayList<>();
+					for (UserIndex.Entry entry : plugin.userIndex().listed())
+						if (entry.name().toLowerCase(Locale.ROOT).contains(filter))
+							filtered.add(entry);
+					total = filtered.size();
+					matches = filtered;
+				}
+				int pages = Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+				int shownPage = Math.min(requestedPage, pages);
+				ArrayList<String> lines = new ArrayList<>();
+				lines.add("§6[DiscordSync] Users " + (filter.isEmpty() ? "" : "matching \"" + filter + "\" ") + "(page " + shownPage + " of " + pages + ", " + total + " total): (MC Name: Linked)§r");
+				int skip = (shownPage - 1) * PAGE_SIZE;
+				int shown = 0;
+				for (UserIndex.Entry entry : matches)
+				{
+					if (skip > 0)
+					{
+						skip--;
+						continue;
+					}
+					if (shown++ == PAGE_SIZE)
+						break;
+					lines.add(entry.name() + ": " + (entry.linked() ? "Yes" : "No"));
+				}
+				if (total == 0)
+					lines.add("None.");
+				if (shownPage < pages)
+					lines.add("§6Run §b/" + label + " " + (shownPage + 1) + (filter.isEmpty() ? "" : " " + filter) + "§6 for the next page.");
+				lines.add("§6Run the §b/view-profile <MC Name>§6 command to view more information about a profile.");
+				plugin.syncPipeline().runOnMainThread(() -> sender.sendMessage(lines.toArray(new String[0])));
+				return null;
+			});
 			return true;
 		}
 	}
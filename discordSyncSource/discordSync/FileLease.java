@@ -0,0 +1,122 @@
+package discordSync;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Decides which server in a network owns the discord bot, using a lease file in the shared directory
+ * <p>
+ *     The lease file holds the leader's server ID and the time it was last renewed. The leader rewrites it regularly,
+ *     and another server only takes it over once it has gone the whole lease time without changing. Each server times
+ *     that with its own clock, so the servers' clocks don't need to agree. The lease is read and written while holding
+ *     a lock on a separate lock file, so two servers can't both take it over at once.
+ * </p>
+ */
+public class FileLease implements Cluster.Lease
+{
+	//file locks belong to the whole JVM, so servers sharing one process, such as when testing, take turns here as well
+	private static final Object localLock = new Object();
+	
+	final File leaseFile;
+	final File lockFile;
+	final String serverID;
+	final long leaseTimeNanos;
+	//what the lease file held when it was last read, and when that was first seen by this server
+	String lastContents = null;
+	long lastChange = System.nanoTime();
+	
+	/**
+	 * @param directory
+	 * @param serverID
+	 * @param leaseTime time in seconds the lease lasts without being renewed
+	 */
+	public FileLease(File directory, String serverID, long leaseTime)
+	{
+		leaseFile = new File(directory, "leader.lease");
+		lockFile = new File(directory, "leader.lock");
+		this.serverID = serverID;
+		leaseTimeNanos = TimeUnit.SECONDS.toNanos(leaseTime);
+		if (!directory.isDirectory())
+			directory.mkdirs();
+	}
+	
+	@Override
+	public synchronized String acquire() throws IOException
+	{
+		synchronized (localLock)
+		{
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+			{
+				FileLock lock = channel.lock();
+				try
+				{
+					String contents = read();
+					long now = System.nanoTime();
+					if (!contents.equals(lastContents))
+					{
+						lastContents = contents;
+						lastChange = now;
+					}
+					
+					//someone else holds the lease and has renewed it recently
+					String holder = holderOf(contents);
+					if (holder != null && !holder.equals(serverID) && now - lastChange < leaseTimeNanos)
+						return holder;
+					
+					//free, already ours, or run out, either way it is ours now
+					String renewed = serverID + "\t" + System.currentTimeMillis();
+					Files.writeString(leaseFile.toPath(), renewed, StandardCharsets.UTF_8);
+					lastContents = renewed;
+					lastChange = now;
+					return serverID;
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void release() throws IOException
+	{
+		synchronized (localLock)
+		{
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+			{
+				FileLock lock = channel.lock();
+				try
+				{
+					if (serverID.equals(holderOf(read())))
+						Files.deleteIfExists(leaseFile.toPath());
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+		}
+	}
+	
+	private String read() throws IOException
+	{
+		try
+		{
+			return Files.readString(leaseFile.toPath(), StandardCharsets.UTF_8).trim();
+		}
+		catch (NoSuchFileException e)
+		{
+			return "";
+		}
+	}
+	
+	private static String holderOf(String contents)
+	{
+		int end = contents.indexOf('\t');
+		return end <= 0 ? null : contents.substring(0, end);
+	}
+}
\ No newline at end of file
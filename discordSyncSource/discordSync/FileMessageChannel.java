@@ -0,0 +1,96 @@
+package discordSync;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Passes messages between the servers in a network through files in the shared directory
+ * <p>
+ *     Each inbox is a folder, and each message a small file that is written under a temporary name and then renamed
+ *     into place, so it is never read half written. Reading an inbox takes every message in it in the order they were
+ *     sent. A message is deleted as it is read, and only handed over by whichever reader manages to delete it, so two
+ *     servers reading the same inbox never both get it.
+ * </p>
+ */
+public class FileMessageChannel implements Cluster.Channel
+{
+	static final String MESSAGE_EXTENSION = ".msg";
+	
+	final File directory;
+	final String serverID;
+	final AtomicLong sequence = new AtomicLong();
+	
+	public FileMessageChannel(File directory, String serverID)
+	{
+		this.directory = directory;
+		this.serverID = serverID;
+		//the inbox has to exist for other servers to find this one
+		inbox(serverID).mkdirs();
+	}
+	
+	private File inbox(String inbox)
+	{
+		return new File(directory, inbox);
+	}
+	
+	@Override
+	public void send(String inbox, String message) throws IOException
+	{
+		File inboxDirectory = inbox(inbox);
+		if (!inboxDirectory.isDirectory())
+			inboxDirectory.mkdirs();
+		//named by when they were sent so they sort into order, the server and sequence keep names from clashing
+		String name = String.format("%013d-%s-%019d", System.currentTimeMillis(), serverID, sequence.incrementAndGet());
+		Path temporaryFile = new File(inboxDirectory, name + ".tmp").toPath();
+		Path file = new File(inboxDirectory, name + MESSAGE_EXTENSION).toPath();
+		Files.writeString(temporaryFile, message, StandardCharsets.UTF_8);
+		try
+		{
+			Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temporaryFile, file);
+		}
+	}
+	
+	@Override
+	public void broadcast(String message) throws IOException
+	{
+		File[] inboxes = directory.listFiles(File::isDirectory);
+		if (inboxes == null)
+			return;
+		for (File inbox : inboxes)
+			if (!inbox.getName().equals(serverID) && !inbox.getName().equals(Cluster.LEADER_INBOX))
+				send(inbox.getName(), message);
+	}
+	
+	@Override
+	public List<String> receive(String inbox) throws IOException
+	{
+		File[] files = inbox(inbox).listFiles((directory, name) -> name.endsWith(MESSAGE_EXTENSION));
+		if (files == null || files.length == 0)
+			return List.of();
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		ArrayList<String> messages = new ArrayList<>();
+		for (File file : files)
+		{
+			String message;
+			try
+			{
+				message = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+				Files.delete(file.toPath());
+			}
+			catch (NoSuchFileException e)
+			{
+				//another server read it first
+				continue;
+			}
+			messages.add(message);
+		}
+		return messages;
+	}
+}
\ No newline at end of file
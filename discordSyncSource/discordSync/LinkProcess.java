@@ -6,8 +6,10 @@ import org.bukkit.entity.*;
 import org.jetbrains.annotations.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class LinkProcess
+public class LinkProcess implements Delayed
 {
 	public static final String CONFIRMATION_TIMEOUT = "confirmation-timeout";
 	
@@ -20,7 +22,160 @@ public class LinkProcess
 		return plugin.getConfig().getInt(CONFIRMATION_TIMEOUT) * 1000L;
 	}
 	
-	private static final HashMap<Integer, LinkProcess> processes = new HashMap<>();
+	public static final String MEMBER_BURST = "link-limits.member-burst";
+	public static final String MEMBER_PER_MINUTE = "link-limits.member-per-minute";
+	public static final String GLOBAL_BURST = "link-limits.global-burst";
+	public static final String GLOBAL_PER_MINUTE = "link-limits.global-per-minute";
+	
+	static final int MIN_CODE = 10000;
+	static final int MAX_CODE = 100000;
+	//how many random codes to try before giving up, only reached if nearly every code is in use
+	static final int MAX_CODE_ATTEMPTS = 64;
+	
+	//written from JDA's event threads and read from the main thread
+	private static final ConcurrentHashMap<Integer, LinkProcess> processes = new ConcurrentHashMap<>();
+	//the active process for each discord member, so re-running the command gives back the same code
+	private static final ConcurrentHashMap<Long, LinkProcess> processesByMember = new ConcurrentHashMap<>();
+	//the same processes ordered by when they expire, so culling only ever looks at expired ones
+	private static final DelayQueue<LinkProcess> expiryQueue = new DelayQueue<>();
+	
+	private static final ConcurrentHashMap<Long, TokenBucket> memberLimits = new ConcurrentHashMap<>();
+	private static volatile TokenBucket globalLimit = new TokenBucket(50, 100);
+	private static volatile int memberBurst = 3;
+	private static volatile double memberPerMinute = 1;
+	private static long lastLimitPrune = System.nanoTime();
+	
+	/**
+	 * Reads the rate limits for starting link processes from the config
+	 * @param plugin
+	 */
+	public static void loadLimits(DiscordSync plugin)
+	{
+		setLimits(plugin.getConfig().getInt(MEMBER_BURST, 3), plugin.getConfig().getDouble(MEMBER_PER_MINUTE, 1),
+				  plugin.getConfig().getInt(GLOBAL_BURST, 50), plugin.getConfig().getDouble(GLOBAL_PER_MINUTE, 100));
+	}
+	
+	/**
+	 * Sets the rate limits for starting link processes
+	 * @param memberBurst
+	 * @param memberPerMinute
+	 * @param globalBurst
+	 * @param globalPerMinute
+	 */
+	static void setLimits(int memberBurst, double memberPerMinute, int globalBurst, double globalPerMinute)
+	{
+		LinkProcess.memberBurst = memberBurst;
+		LinkProcess.memberPerMinute = memberPerMinute;
+		globalLimit = new TokenBucket(globalBurst, globalPerMinute);
+		memberLimits.clear();
+	}
+	
+	/**
+	 * Starts a link process for the given member
+	 * <p>
+	 *     If the member already has an active process, that process is returned instead of starting a new one. Returns
+	 *     null if the member, or everyone combined, has started too many processes recently.
+	 * </p>
+	 * @param plugin
+	 * @param initiator
+	 * @return
+	 */
+	public static LinkProcess begin(DiscordSync plugin, Member initiator)
+	{
+		return begin(plugin, initiator, confirmationTimeout(plugin));
+	}
+	
+	/**
+	 * Starts a link process for the given member that expires after the given time
+	 * @param plugin
+	 * @param initiator
+	 * @param timeout time in milliseconds before the process expires
+	 * @return
+	 */
+	static LinkProcess begin(DiscordSync plugin, Member initiator, long timeout)
+	{
+		long memberID = initiator.getIdLong();
+		TokenBucket memberBucket = null;
+		TokenBucket globalBucket = null;
+		while (true)
+		{
+			LinkProcess existing = processesByMember.get(memberID);
+			if (existing != null && existing.valid())
+			{
+				release(memberBucket, globalBucket);
+				return existing;
+			}
+			
+			//only take tokens once, even if we go round again after losing a race
+			if (memberBucket == null)
+			{
+				TokenBucket member = memberLimits.computeIfAbsent(memberID, id -> new TokenBucket(memberBurst, memberPerMinute));
+				if (!member.tryAcquire())
+					return null;
+				TokenBucket global = globalLimit;
+				if (!global.tryAcquire())
+				{
+					member.release();
+					return null;
+				}
+				memberBucket = member;
+				globalBucket = global;
+			}
+			LinkProcess process = allocate(plugin, initiator, timeout);
+			if (process == null)
+			{
+				release(memberBucket, globalBucket);
+				return null;
+			}
+			
+			boolean claimed = existing == null ? processesByMember.putIfAbsent(memberID, process) == null : processesByMember.replace(memberID, existing, process);
+			if (!claimed)
+			{
+				//another command from the same member got in first, give the code back and use theirs
+				processes.remove(process.confirmationCode, process);
+				continue;
+			}
+			if (existing != null)
+				processes.remove(existing.confirmationCode, existing);
+			expiryQueue.add(process);
+			return process;
+		}
+	}
+	
+	/**
+	 * Puts back the tokens taken for a process that was never started
+	 * @param memberBucket
+	 * @param globalBucket
+	 */
+	private static void release(TokenBucket memberBucket, TokenBucket globalBucket)
+	{
+		if (memberBucket != null)
+		{
+			memberBucket.release();
+			globalBucket.release();
+		}
+	}
+	
+	/**
+	 * Creates a process with a code that no other live process is using
+	 * <p>
+	 *     Returns null if no free code could be found.
+	 * </p>
+	 * @param plugin
+	 * @param initiator
+	 * @param timeout
+	 * @return
+	 */
+	private static LinkProcess allocate(DiscordSync plugin, Member initiator, long timeout)
+	{
+		for (int attempt = 0; attempt < MAX_CODE_ATTEMPTS; attempt++)
+		{
+			LinkProcess process = new LinkProcess(plugin, initiator, ThreadLocalRandom.current().nextInt(MIN_CODE, MAX_CODE), timeout);
+			if (processes.putIfAbsent(process.confirmationCode, process) == null)
+				return process;
+		}
+		return null;
+	}
 	
 	/**
 	 * Gets the link process that has the given code
@@ -40,34 +195,86 @@ public class LinkProcess
 	}
 	
 	/**
-	 * removes expired processes from the HashMap
+	 * Completes the link process with the given code for a minecraft player, who may be on another server in the network
+	 * <p>
+	 *     The player is told if the code doesn't match an active process.
+	 * </p>
+	 * @param plugin
+	 * @param code
+	 * @param minecraftUUID
+	 * @param name
+	 */
+	static void complete(DiscordSync plugin, int code, UUID minecraftUUID, String name)
+	{
+		LinkProcess process = getProcess(code);
+		if (process != null)
+			process.complete(minecraftUUID, name);
+		else
+			plugin.cluster().tell(minecraftUUID, "§6[DiscordSync]§b That code does not match a valid and active link process, make sure you typed the code correctly and try again. If your code " +
+												 "has expired or you have lost the code, just re-run the command in discord to get a new code.");
+	}
+	
+	/**
+	 * Removes expired processes
+	 * <p>
+	 *     Only the processes that have expired are touched, so this is cheap to call often.
+	 * </p>
 	 */
 	public static void cull()
 	{
-		ArrayList<LinkProcess> expiredProcesses = new ArrayList<>();
-		for (LinkProcess process : processes.values())
-			if (!process.valid())
-				expiredProcesses.add(process);
-		for (LinkProcess expiredProcess : expiredProcesses)
-			processes.remove(expiredProcess);
+		LinkProcess expiredProcess;
+		while ((expiredProcess = expiryQueue.poll()) != null)
+		{
+			processes.remove(expiredProcess.confirmationCode, expiredProcess);
+			processesByMember.remove(expiredProcess.initiator.getIdLong(), expiredProcess);
+		}
+		
+		//members whose limit has fully refilled don't need to be remembered
+		long now = System.nanoTime();
+		if (now - lastLimitPrune > TimeUnit.MINUTES.toNanos(1))
+		{
+			lastLimitPrune = now;
+			memberLimits.values().removeIf(TokenBucket::isFull);
+		}
 	}
 	
-	static final Random random = new Random();
+	/**
+	 * Returns the number of processes that haven't been removed yet
+	 * @return
+	 */
+	public static int activeCount()
+	{
+		return processes.size();
+	}
 	
-	Member initiator;
-	int confirmationCode;
-	long initiationTime;
-	DiscordSync plugin;
-	boolean completed = false;
+	final Member initiator;
+	final int confirmationCode;
+	final long initiationTime;
+	final long deadlineNanos;
+	final DiscordSync plugin;
+	final AtomicBoolean completed = new AtomicBoolean();
 	
-	public LinkProcess(DiscordSync plugin, Member initiator)
+	private LinkProcess(DiscordSync plugin, Member initiator, int confirmationCode, long timeout)
 	{
 		this.plugin = plugin;
 		this.initiator = initiator;
-		confirmationCode = random.nextInt(10000, 100000);
+		this.confirmationCode = confirmationCode;
 		initiationTime = System.currentTimeMillis();
-		
-		processes.put(confirmationCode, this);
+		deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+	
+	@Override
+	public long getDelay(@NotNull TimeUnit unit)
+	{
+		return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public int compareTo(@NotNull Delayed other)
+	{
+		if (other instanceof LinkProcess process)
+			return Long.compare(deadlineNanos, process.deadlineNanos);
+		return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
 	}
 	
 	public int getConfirmationCode()
@@ -99,7 +306,7 @@ public class LinkProcess
 	 */
 	public boolean valid()
 	{
-		return !completed && (System.currentTimeMillis() - initiationTime) < confirmationTimeout(plugin);
+		return !completed.get() && System.nanoTime() - deadlineNanos < 0;
 	}
 	
 	/**
@@ -108,15 +315,43 @@ public class LinkProcess
 	 */
 	public void complete(Player player)
 	{
-		completed = true;
-		User user = new User(plugin, player.getUniqueId());
+		complete(player.getUniqueId(), player.getName());
+	}
+	
+	/**
+	 * Complete this link process with the given minecraft player, who may be on another server in the network
+	 * @param minecraftUUID
+	 * @param name
+	 */
+	public void complete(UUID minecraftUUID, String name)
+	{
+		//two players racing to use the same code must not both be linked
+		if (!completed.compareAndSet(false, true))
+		{
+			plugin.cluster().tell(minecraftUUID, "§6[DiscordSync]§b That link process has already been completed.");
+			return;
+		}
+		processes.remove(confirmationCode, this);
+		processesByMember.remove(initiator.getIdLong(), this);
+		expiryQueue.remove(this);
+		User user = new User(plugin, minecraftUUID);
+		//the player may be on another server, so the sync won't see their name
+		user.updateLastSeenName(name);
 		user.setDiscordUuid(initiator.getIdLong());
-		player.sendMessage("§6[DiscordSync]§b Linked to §6" + initiator.getEffectiveName() + "§b for syncing.");
-		initiator.getUser().openPrivateChannel().onSuccess(channel -> channel.sendMessage("Linked to " + player.getName() + " for syncing.").queue()).queue();
+		plugin.cluster().linked(minecraftUUID, initiator.getIdLong(), name);
+		plugin.cluster().tell(minecraftUUID, "§6[DiscordSync]§b Linked to §6" + initiator.getEffectiveName() + "§b for syncing.");
+		initiator.getUser().openPrivateChannel().onSuccess(channel -> channel.sendMessage("Linked to " + name + " for syncing.").queue()).queue();
 	}
 	
 	public static class LinkAccountCommand implements CommandExecutor
 	{
+		final DiscordSync plugin;
+		
+		public LinkAccountCommand(DiscordSync plugin)
+		{
+			this.plugin = plugin;
+		}
+		
 		@Override
 		public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args)
 		{
@@ -131,12 +366,12 @@ public class LinkProcess
 				try
 				{
 					int code = Integer.parseInt(args[0]);
-					LinkProcess process = LinkProcess.getProcess(code);
-					if (process != null)
-						process.complete((Player)sender);
+					Player player = (Player)sender;
+					//in a network the code was handed out by the server that owns the bot
+					if (plugin.cluster().isLeader())
+						LinkProcess.complete(plugin, code, player.getUniqueId(), player.getName());
 					else
-						sender.sendMessage("§6[DiscordSync]§b That code does not match a valid and active link process, make sure you typed the code correctly and try again. If your code has expired " +
-										   "or you have lost the code, just re-run the command in discord to get a new code.");
+						plugin.cluster().forwardLink(code, player);
 					return true;
 				}
 				catch (Exception ignored)
@@ -0,0 +1,208 @@
+package discordSync;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Stores every user in a single append-only log file
+ * <p>
+ *     Each save appends one line holding the user's whole record, and the latest line for a user wins when the log is
+ *     read back. All records are kept in memory, so loading a user never touches the disk. Once the log has built up
+ *     enough superseded lines it is compacted by writing the current records to a new file and swapping it in.
+ * </p>
+ */
+public class LogUserStore implements UserStore
+{
+	//compact once the log holds this many more lines than there are users
+	static final int COMPACTION_SLACK = 10000;
+	
+	final File file;
+	final HashMap<UUID, UserRecord> records = new HashMap<>();
+	BufferedWriter writer;
+	int lineCount = 0;
+	
+	public LogUserStore(File file) throws IOException
+	{
+		this.file = file;
+		replay();
+		writer = openWriter();
+	}
+	
+	private void replay() throws IOException
+	{
+		if (!file.exists())
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineCount++;
+				UserRecord record = parse(line);
+				//a partially written line from a crash is simply skipped
+				if (record != null)
+					records.put(record.minecraftUUID, record);
+			}
+		}
+	}
+	
+	private BufferedWriter openWriter() throws IOException
+	{
+		return Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+	
+	@Override
+	public synchronized UserRecord load(UUID minecraftUUID)
+	{
+		UserRecord record = records.get(minecraftUUID);
+		return record == null ? null : record.copy();
+	}
+	
+	@Override
+	public synchronized void save(UserRecord record)
+	{
+		saveAll(List.of(record));
+	}
+	
+	@Override
+	public synchronized void saveAll(Collection<UserRecord> records)
+	{
+		try
+		{
+			for (UserRecord record : records)
+			{
+				writer.write(format(record));
+				writer.newLine();
+				lineCount++;
+				this.records.put(record.minecraftUUID, record.copy());
+			}
+			writer.flush();
+			if (lineCount > this.records.size() + COMPACTION_SLACK)
+				compact();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	@Override
+	public synchronized void forEach(Consumer<UserRecord> consumer)
+	{
+		for (UserRecord record : records.values())
+			consumer.accept(record.copy());
+	}
+	
+	/**
+	 * Returns the number of users stored
+	 * @return
+	 */
+	public synchronized int size()
+	{
+		return records.size();
+	}
+	
+	/**
+	 * Rewrites the log so it only holds the latest record for each user
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException
+	{
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		try (FileOutputStream output = new FileOutputStream(temporaryFile);
+			 BufferedWriter temporaryWriter = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)))
+		{
+			for (UserRecord record : records.values())
+			{
+				temporaryWriter.write(format(record));
+				temporaryWriter.newLine();
+			}
+			temporaryWriter.flush();
+			//make sure the new log is fully on disk before it replaces the old one
+			output.getFD().sync();
+		}
+		
+		writer.close();
+		try
+		{
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			writer = openWriter();
+		}
+		lineCount = records.size();
+	}
+	
+	@Override
+	public synchronized void close()
+	{
+		try
+		{
+			if (lineCount > records.size())
+				compact();
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static String format(UserRecord record)
+	{
+		//names can't normally contain these, but make sure a bad one can't break the log
+		String name = record.lastSeenName == null ? "" : record.lastSeenName.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		return record.minecraftUUID + "\t" + record.discordID + "\t" + name;
+	}
+	
+	private static UserRecord parse(String line)
+	{
+		String[] parts = line.split("\t", 3);
+		if (parts.length != 3)
+			return null;
+		try
+		{
+			//users with no name are written with an empty one
+			return new UserRecord(UUID.fromString(parts[0]), Long.parseLong(parts[1]), parts[2].isEmpty() ? null : parts[2]);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Moves every user from the yaml userData directory into the given log, if the log is still empty
+	 * <p>
+	 *     The userData directory is renamed afterwards so that it is only ever migrated once.
+	 * </p>
+	 * @param plugin
+	 * @param store
+	 */
+	static void migrate(DiscordSync plugin, LogUserStore store)
+	{
+		File directory = plugin.userDataDirectory();
+		if (store.size() > 0 || !directory.isDirectory())
+			return;
+		
+		ArrayList<UserRecord> records = new ArrayList<>();
+		new YamlUserStore(directory).forEach(records::add);
+		if (records.isEmpty())
+			return;
+		
+		store.saveAll(records);
+		File migratedDirectory = new File(directory.getPath() + "-migrated");
+		if (!directory.renameTo(migratedDirectory))
+			plugin.getLogger().log(Level.WARNING, "Could not rename " + directory + " after migrating it, it will be ignored while the user log is in use.");
+		plugin.getLogger().log(Level.INFO, "Migrated " + records.size() + " users from " + directory.getName() + " to " + store.file.getName() + ".");
+	}
+}
\ No newline at end of file
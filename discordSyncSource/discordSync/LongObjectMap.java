@@ -0,0 +1,113 @@
+package discordSync;
+
+import java.util.*;
+
+/**
+ * An immutable hash map with primitive long keys
+ * <p>
+ *     Uses open addressing over parallel arrays, so lookups don't box the key or chase entry objects. Built once with
+ *     {@link Builder} and never modified afterwards, which makes it safe to share between threads.
+ * </p>
+ * @param <V>
+ */
+public class LongObjectMap<V>
+{
+	final long[] keys;
+	final Object[] values;
+	final boolean[] used;
+	final int mask;
+	final int size;
+	
+	private LongObjectMap(long[] keys, Object[] values, boolean[] used, int size)
+	{
+		this.keys = keys;
+		this.values = values;
+		this.used = used;
+		this.mask = keys.length - 1;
+		this.size = size;
+	}
+	
+	/**
+	 * Gets the value for the given key
+	 * <p>
+	 *     Returns null if there is no value for the key.
+	 * </p>
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		int index = slot(key, mask);
+		while (used[index])
+		{
+			if (keys[index] == key)
+				return (V)values[index];
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks if there is a value for the given key
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(long key)
+	{
+		return get(key) != null;
+	}
+	
+	/**
+	 * Returns the number of entries
+	 * @return
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	static int slot(long key, int mask)
+	{
+		//spread the bits, discord IDs share a lot of their high bits since they start with a timestamp
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+	
+	public static class Builder<V>
+	{
+		final LinkedHashMap<Long, V> entries = new LinkedHashMap<>();
+		
+		/**
+		 * Adds an entry, unless the key already has a value
+		 * @param key
+		 * @param value
+		 * @return true if the entry was added
+		 */
+		public boolean putIfAbsent(long key, V value)
+		{
+			return entries.putIfAbsent(key, Objects.requireNonNull(value)) == null;
+		}
+		
+		public LongObjectMap<V> build()
+		{
+			//keep the table at most half full so probe sequences stay short
+			int capacity = Integer.highestOneBit(Math.max(2, entries.size()) * 2 - 1) << 1;
+			long[] keys = new long[capacity];
+			Object[] values = new Object[capacity];
+			boolean[] used = new boolean[capacity];
+			int mask = capacity - 1;
+			for (Map.Entry<Long, V> entry : entries.entrySet())
+			{
+				long key = entry.getKey();
+				int index = slot(key, mask);
+				while (used[index])
+					index = (index + 1) & mask;
+				used[index] = true;
+				keys[index] = key;
+				values[index] = entry.getValue();
+			}
+			return new LongObjectMap<>(keys, values, used, entries.size());
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,209 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.exceptions.*;
+import net.dv8tion.jda.api.requests.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded cache of discord guild members, keyed by discord ID
+ * <p>
+ *     Entries expire after a configurable time and the least recently used entries are evicted once the cache is full.
+ *     The discord bot keeps entries fresh from gateway events, so most lookups never need a REST call. Users that are
+ *     not in the guild are cached as well, so that repeatedly checking them doesn't cost a request each time.
+ * </p>
+ */
+public class MemberCache
+{
+	public static final String MAX_SIZE = "member-cache.max-size";
+	public static final String TIME_TO_LIVE = "member-cache.time-to-live";
+	
+	final DiscordSync plugin;
+	final LinkedHashMap<Long, Entry> entries;
+	int maxSize;
+	long timeToLive;
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	
+	public MemberCache(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		maxSize = Math.max(1, plugin.getConfig().getInt(MAX_SIZE, 10000));
+		timeToLive = plugin.getConfig().getLong(TIME_TO_LIVE, 600) * 1000L;
+		entries = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest)
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	/**
+	 * Gets the guild member with the given discord ID
+	 * <p>
+	 *     Only performs a REST call if the member isn't cached or their entry has expired. Returns null if the user is
+	 *     not a member of the guild.
+	 * </p>
+	 * @param discordID
+	 * @return
+	 * @throws UnavailableException if the bot isn't connected to the guild, or discord couldn't say if they are a member
+	 */
+	public Member get(long discordID)
+	{
+		if (discordID == 0)
+			return null;
+		
+		synchronized (entries)
+		{
+			Entry entry = entries.get(discordID);
+			if (entry != null)
+			{
+				if (!entry.expired())
+				{
+					hits.increment();
+					return entry.member;
+				}
+				entries.remove(discordID);
+			}
+		}
+		
+		misses.increment();
+		Guild guild = plugin.bot().guild;
+		if (guild == null)
+			throw new UnavailableException("The discord bot isn't connected to the discord server.", null);
+		try
+		{
+			Member member = plugin.blocking().call(BlockingExecutor.Kind.DISCORD, () -> guild.retrieveMemberById(discordID).complete());
+			put(discordID, member);
+			return member;
+		}
+		catch (ErrorResponseException e)
+		{
+			//only remember that they aren't a member if discord told us so, other errors may be temporary
+			if (e.getErrorResponse() == ErrorResponse.UNKNOWN_MEMBER || e.getErrorResponse() == ErrorResponse.UNKNOWN_USER)
+			{
+				put(discordID, null);
+				return null;
+			}
+			throw new UnavailableException("Could not retrieve discord member " + discordID + ".", e);
+		}
+	}
+	
+	/**
+	 * Gets the guild member with the given discord ID only if they are cached
+	 * @param discordID
+	 * @return
+	 */
+	public Member getIfCached(long discordID)
+	{
+		synchronized (entries)
+		{
+			Entry entry = entries.get(discordID);
+			return entry == null || entry.expired() ? null : entry.member;
+		}
+	}
+	
+	/**
+	 * Stores the current state of a member
+	 * @param discordID
+	 * @param member null if the user is not a member of the guild
+	 */
+	public void put(long discordID, Member member)
+	{
+		synchronized (entries)
+		{
+			entries.put(discordID, new Entry(member, System.currentTimeMillis() + timeToLive));
+		}
+	}
+	
+	/**
+	 * Stores the current state of a member
+	 * @param member
+	 */
+	public void put(Member member)
+	{
+		put(member.getIdLong(), member);
+	}
+	
+	/**
+	 * Removes a member from the cache, so that the next lookup retrieves them from discord
+	 * @param discordID
+	 */
+	public void invalidate(long discordID)
+	{
+		synchronized (entries)
+		{
+			entries.remove(discordID);
+		}
+	}
+	
+	/**
+	 * Removes every member from the cache
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * Returns the number of cached entries, including expired ones that haven't been removed yet
+	 * @return
+	 */
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+	
+	/**
+	 * Returns the number of lookups served from the cache
+	 * @return
+	 */
+	public long hits()
+	{
+		return hits.sum();
+	}
+	
+	/**
+	 * Returns the number of lookups that had to ask discord
+	 * @return
+	 */
+	public long misses()
+	{
+		return misses.sum();
+	}
+	
+	/**
+	 * Thrown when it can't currently be known whether a user is a member of the guild
+	 * <p>
+	 *     Such as when the bot isn't running, or is running on another server in the network. This is not the same as the
+	 *     user not being a member, so callers shouldn't treat them as unlinked.
+	 * </p>
+	 */
+	public static class UnavailableException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		public UnavailableException(String message, Throwable cause)
+		{
+			super(message, cause);
+		}
+	}
+	
+	record Entry(Member member, long expiry)
+	{
+		boolean expired()
+		{
+			return System.currentTimeMillis() >= expiry;
+		}
+	}
+}
\ No newline at end of file
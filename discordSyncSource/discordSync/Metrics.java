@@ -0,0 +1,275 @@
+package discordSync;
+
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Collects the plugin's counters, gauges and latency histograms
+ * <p>
+ *     Nothing is recorded here, the values are read from the parts of the plugin that keep them whenever metrics are
+ *     requested. They can be scraped in the Prometheus text format from an optional HTTP endpoint bound to the
+ *     configured address and port, or viewed in game with /discordsync stats.
+ * </p>
+ */
+public class Metrics
+{
+	public static final String PORT = "metrics.port";
+	public static final String BIND_ADDRESS = "metrics.bind-address";
+	
+	final DiscordSync plugin;
+	HttpServer server;
+	ExecutorService serverExecutor;
+	
+	public Metrics(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+	}
+	
+	/**
+	 * Starts the HTTP endpoint if a port is set in the config
+	 */
+	public void enable()
+	{
+		int port = plugin.getConfig().getInt(PORT, 0);
+		if (port <= 0)
+			return;
+		String address = plugin.getConfig().getString(BIND_ADDRESS, "127.0.0.1");
+		try
+		{
+			server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		}
+		catch (IOException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not start the metrics endpoint on " + address + ":" + port + ".", exception);
+			return;
+		}
+		serverExecutor = Executors.newSingleThreadExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DiscordSync-Metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(serverExecutor);
+		server.createContext("/metrics", exchange ->
+		{
+			try (exchange)
+			{
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+		});
+		server.start();
+		plugin.getLogger().log(Level.INFO, "Serving metrics on http://" + address + ":" + port + "/metrics.");
+	}
+	
+	/**
+	 * Stops the HTTP endpoint
+	 */
+	public void shutdown()
+	{
+		if (server != null)
+		{
+			server.stop(0);
+			serverExecutor.shutdown();
+			server = null;
+		}
+	}
+	
+	/**
+	 * Renders every metric in the Prometheus text format
+	 * @return
+	 */
+	public String render()
+	{
+		Writer writer = new Writer();
+		
+		SyncPipeline pipeline = plugin.syncPipeline();
+		if (pipeline != null)
+		{
+			EnumMap<SyncPipeline.Stage, SyncPipeline.StageTimings> stages = new EnumMap<>(SyncPipeline.Stage.class);
+			for (SyncPipeline.Stage stage : SyncPipeline.Stage.values())
+				stages.put(stage, pipeline.timings(stage));
+			writer.histograms("discordsync_sync_stage_seconds", "Time taken by each stage of a user sync.", "stage", stages);
+			writer.gauge("discordsync_sync_queue_depth", "Syncs waiting to be performed.", pipeline.queueDepth());
+		}
+		
+		DiscordBot bot = plugin.bot();
+		writer.counter("discordsync_discord_http_requests_total", "HTTP requests made to discord.", bot.httpRequests());
+		writer.counter("discordsync_discord_rate_limited_total", "HTTP requests discord rejected with a 429.", bot.rateLimitedRequests());
+		writer.histograms("discordsync_command_seconds", "Time taken to run each discord slash command.", "command", new TreeMap<>(bot.commandTimings()));
+		if (bot.memberCache() != null)
+		{
+			writer.counter("discordsync_member_cache_hits_total", "Member lookups served from the cache.", bot.memberCache().hits());
+			writer.counter("discordsync_member_cache_misses_total", "Member lookups that had to ask discord.", bot.memberCache().misses());
+			writer.gauge("discordsync_member_cache_size", "Members currently cached.", bot.memberCache().size());
+		}
+		
+		BlockingExecutor blocking = plugin.blocking();
+		if (blocking != null)
+		{
+			EnumMap<BlockingExecutor.Kind, SyncPipeline.StageTimings> waits = new EnumMap<>(BlockingExecutor.Kind.class);
+			EnumMap<BlockingExecutor.Kind, SyncPipeline.StageTimings> runs = new EnumMap<>(BlockingExecutor.Kind.class);
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+			{
+				waits.put(kind, blocking.limit(kind).waitTimings());
+				runs.put(kind, blocking.limit(kind).runTimings());
+			}
+			writer.histograms("discordsync_blocking_wait_seconds", "Time blocking calls waited for a permit.", "kind", waits);
+			writer.histograms("discordsync_blocking_call_seconds", "Time blocking calls took once they had a permit.", "kind", runs);
+			//each metric's samples have to be written together, so go through the kinds once per metric
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+				writer.gauge("discordsync_blocking_active", "Blocking calls currently running.", "kind", label(kind), blocking.limit(kind).active());
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+				writer.gauge("discordsync_blocking_waiting", "Blocking calls waiting for a permit.", "kind", label(kind), blocking.limit(kind).waiting());
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+				writer.gauge("discordsync_blocking_limit", "Maximum blocking calls that can run at once.", "kind", label(kind), blocking.limit(kind).size());
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+				writer.counter("discordsync_blocking_failures_total", "Blocking calls that threw an exception.", "kind", label(kind), blocking.limit(kind).failures());
+			for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+				writer.counter("discordsync_blocking_timeouts_total", "Blocking calls that timed out.", "kind", label(kind), blocking.limit(kind).timeouts());
+		}
+		
+		DiscordRoleQueue discordRoleQueue = plugin.discordRoleQueue();
+		if (discordRoleQueue != null)
+		{
+			writer.gauge("discordsync_discord_role_queue_depth", "Members with role changes waiting to be sent to discord.", discordRoleQueue.pendingCount());
+			writer.counter("discordsync_discord_role_updates_total", "Role update requests sent to discord.", "result", "sent", discordRoleQueue.requestsSent());
+			writer.counter("discordsync_discord_role_updates_total", "Role update requests sent to discord.", "result", "failed", discordRoleQueue.requestsFailed());
+		}
+		if (plugin.roleUpdates() != null)
+			writer.gauge("discordsync_role_update_queue_depth", "Members with discord role changes waiting to be applied to LuckPerms.", plugin.roleUpdates().pendingCount());
+		if (plugin.userStore() instanceof WriteBehindUserStore store)
+		{
+			writer.gauge("discordsync_user_store_pending", "User records waiting to be written.", store.pendingCount());
+			writer.counter("discordsync_user_store_writes_total", "User records written to storage.", store.recordsWritten());
+		}
+		if (plugin.offlineReconciler() != null)
+			writer.gauge("discordsync_offline_reconcile_progress", "Fraction of linked users visited in the current background pass.", plugin.offlineReconciler().progress());
+		Cluster cluster = plugin.cluster();
+		if (cluster != null && cluster.enabled())
+		{
+			writer.gauge("discordsync_cluster_leader", "1 if this server owns the discord bot for the network.", cluster.isLeader() ? 1 : 0);
+			writer.counter("discordsync_cluster_messages_total", "Messages passed between servers in the network.", "direction", "sent", cluster.messagesSent());
+			writer.counter("discordsync_cluster_messages_total", "Messages passed between servers in the network.", "direction", "received", cluster.messagesReceived());
+		}
+		writer.gauge("discordsync_link_processes", "Link processes that haven't expired yet.", LinkProcess.activeCount());
+		writer.gauge("discordsync_users", "Users in the index.", plugin.userIndex().size());
+		return writer.toString();
+	}
+	
+	/**
+	 * Builds a short human readable summary of the most useful metrics
+	 * @return
+	 */
+	public List<String> summary()
+	{
+		ArrayList<String> lines = new ArrayList<>();
+		SyncPipeline pipeline = plugin.syncPipeline();
+		SyncPipeline.StageTimings syncs = pipeline.timings(SyncPipeline.Stage.TOTAL);
+		lines.add("§6[DiscordSync]§b Stats:");
+		lines.add("§bSyncs: §6" + syncs.count() + "§b, avg §6" + format(syncs.averageMillis()) + "ms§b, max §6" + format(syncs.maxMillis()) + "ms§b, queued §6" + pipeline.queueDepth());
+		for (SyncPipeline.Stage stage : SyncPipeline.Stage.values())
+		{
+			if (stage == SyncPipeline.Stage.TOTAL)
+				continue;
+			SyncPipeline.StageTimings timings = pipeline.timings(stage);
+			lines.add("§b  " + label(stage) + ": avg §6" + format(timings.averageMillis()) + "ms§b, max §6" + format(timings.maxMillis()) + "ms");
+		}
+		for (BlockingExecutor.Kind kind : BlockingExecutor.Kind.values())
+		{
+			BlockingExecutor.Limit limit = plugin.blocking().limit(kind);
+			lines.add("§b" + label(kind) + " calls: §6" + limit.runTimings().count() + "§b, active §6" + limit.active() + "/" + limit.size() + "§b, waiting §6" + limit.waiting() + "§b, avg wait §6" +
+					  format(limit.waitTimings().averageMillis()) + "ms§b, failures §6" + limit.failures());
+		}
+		DiscordBot bot = plugin.bot();
+		lines.add("§bDiscord requests: §6" + bot.httpRequests() + "§b, rate limited §6" + bot.rateLimitedRequests() + "§b, member cache §6" + bot.memberCache().hits() + "§b hits §6" +
+				  bot.memberCache().misses() + "§b misses");
+		lines.add("§bQueues: discord roles §6" + plugin.discordRoleQueue().pendingCount() + "§b, LuckPerms roles §6" + plugin.roleUpdates().pendingCount() + "§b, link processes §6" +
+				  LinkProcess.activeCount());
+		Cluster cluster = plugin.cluster();
+		if (cluster.enabled())
+			lines.add("§bNetwork: server §6" + cluster.serverID() + "§b, bot owned by §6" + (cluster.leaderID() == null ? "nobody yet" : cluster.leaderID()) + "§b, messages sent §6" +
+					  cluster.messagesSent() + "§b, received §6" + cluster.messagesReceived());
+		return lines;
+	}
+	
+	private static String label(Enum<?> value)
+	{
+		return value.name().toLowerCase(Locale.ROOT);
+	}
+	
+	private static String format(double value)
+	{
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+	
+	/**
+	 * Writes metrics in the Prometheus text format, each metric's help and type are only written the first time it appears
+	 */
+	static class Writer
+	{
+		final StringBuilder builder = new StringBuilder();
+		final HashSet<String> described = new HashSet<>();
+		
+		void counter(String name, String help, long value)
+		{
+			describe(name, help, "counter");
+			builder.append(name).append(' ').append(value).append('\n');
+		}
+		
+		void counter(String name, String help, String labelName, String labelValue, long value)
+		{
+			describe(name, help, "counter");
+			builder.append(name).append('{').append(labelName).append("=\"").append(labelValue).append("\"} ").append(value).append('\n');
+		}
+		
+		void gauge(String name, String help, double value)
+		{
+			describe(name, help, "gauge");
+			builder.append(name).append(' ').append(value).append('\n');
+		}
+		
+		void gauge(String name, String help, String labelName, String labelValue, double value)
+		{
+			describe(name, help, "gauge");
+			builder.append(name).append('{').append(labelName).append("=\"").append(labelValue).append("\"} ").append(value).append('\n');
+		}
+		
+		void histograms(String name, String help, String labelName, Map<?, SyncPipeline.StageTimings> timings)
+		{
+			describe(name, help, "histogram");
+			for (Map.Entry<?, SyncPipeline.StageTimings> entry : timings.entrySet())
+			{
+				String labelValue = entry.getKey() instanceof Enum<?> value ? label(value) : entry.getKey().toString();
+				String labels = labelName + "=\"" + labelValue + "\"";
+				SyncPipeline.StageTimings timing = entry.getValue();
+				long[] buckets = timing.cumulativeBuckets();
+				for (int index = 0; index < buckets.length; index++)
+					builder.append(name).append("_bucket{").append(labels).append(",le=\"").append(SyncPipeline.StageTimings.BUCKET_BOUNDS_MILLIS[index] / 1000).append("\"} ").append(buckets[index]).append('\n');
+				builder.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(timing.count()).append('\n');
+				builder.append(name).append("_sum{").append(labels).append("} ").append(timing.totalSeconds()).append('\n');
+				builder.append(name).append("_count{").append(labels).append("} ").append(timing.count()).append('\n');
+			}
+		}
+		
+		private void describe(String name, String help, String type)
+		{
+			if (described.add(name))
+				builder.append("# HELP ").append(name).append(' ').append(help).append('\n').append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+		
+		@Override
+		public String toString()
+		{
+			return builder.toString();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,282 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import org.bukkit.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Slowly works through every linked user in the background, bringing their LuckPerms groups in line with discord
+ * <p>
+ *     Players are only synced when they join, so without this a player who loses a discord role while offline keeps the
+ *     matching group until they next join. Users are visited in order of UUID, a batch at a time, and the last user
+ *     visited is saved after each batch so a restart carries on where it left off. Work is paced to the configured
+ *     requests-per-second, so a full pass is spread out rather than hitting discord and LuckPerms all at once. Each update
+ *     goes through the sync pipeline like any other, and players who are online are skipped.
+ * </p>
+ */
+public class OfflineReconciler
+{
+	public static final String ENABLED = "offline-reconcile.enabled";
+	public static final String REQUESTS_PER_SECOND = "offline-reconcile.requests-per-second";
+	public static final String BATCH_SIZE = "offline-reconcile.batch-size";
+	public static final String PASS_INTERVAL = "offline-reconcile.pass-interval";
+	
+	//discord won't return more than this many members for a single request
+	static final int MEMBER_CHUNK_SIZE = 100;
+	
+	final DiscordSync plugin;
+	final File cursorFile;
+	final long requestInterval;
+	final int batchSize;
+	final long passInterval;
+	volatile Thread worker;
+	volatile boolean running = false;
+	//the last user visited in the current pass, null at the start of a pass, read by progress() from other threads
+	volatile UUID cursor;
+	volatile List<UUID> pass = List.of();
+	volatile int position = 0;
+	long usersVisited = 0;
+	
+	public OfflineReconciler(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		cursorFile = new File(plugin.getDataFolder(), "reconcile-cursor.txt");
+		requestInterval = (long)(TimeUnit.SECONDS.toNanos(1) / Math.max(0.01, plugin.getConfig().getDouble(REQUESTS_PER_SECOND, 2)));
+		batchSize = Math.max(1, Math.min(MEMBER_CHUNK_SIZE, plugin.getConfig().getInt(BATCH_SIZE, 20)));
+		passInterval = Math.max(1, plugin.getConfig().getLong(PASS_INTERVAL, 60));
+	}
+	
+	/**
+	 * Starts working through linked users, if enabled in the config
+	 */
+	public void enable()
+	{
+		if (!plugin.getConfig().getBoolean(ENABLED, true))
+			return;
+		cursor = readCursor();
+		running = true;
+		worker = new Thread(this::run, "DiscordSync-OfflineReconcile");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	private void run()
+	{
+		while (active())
+		{
+			try
+			{
+				//nothing can be reconciled until the bot is connected
+				try
+				{
+					plugin.bot().ready().get();
+				}
+				catch (ExecutionException | CancellationException e)
+				{
+					Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+					continue;
+				}
+				
+				if (position >= pass.size() && !startPass())
+				{
+					//finished a pass, wait a while before starting the next one
+					if (usersVisited > 0)
+						plugin.getLogger().log(Level.INFO, "Reconciled " + usersVisited + " linked users in the background.");
+					usersVisited = 0;
+					writeCursor(null);
+					Thread.sleep(TimeUnit.MINUTES.toMillis(passInterval));
+					continue;
+				}
+				reconcileBatch(pass.subList(position, Math.min(pass.size(), position + batchSize)));
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (RuntimeException exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Background reconcile failed, will try again shortly.", exception);
+				try
+				{
+					Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the calling worker should carry on
+	 * <p>
+	 *     A worker from before the reconciler was last stopped and started again leaves the work to the new one.
+	 * </p>
+	 * @return
+	 */
+	private boolean active()
+	{
+		return running && worker == Thread.currentThread();
+	}
+	
+	/**
+	 * Takes a snapshot of every linked user to work through, starting after the cursor
+	 * @return false if there is nobody left to visit after the cursor
+	 */
+	private boolean startPass()
+	{
+		ArrayList<UUID> linked = new ArrayList<>();
+		for (UserIndex.Entry entry : plugin.userIndex().entries())
+			if (entry.linked())
+				linked.add(entry.minecraftUUID());
+		Collections.sort(linked);
+		pass = linked;
+		position = 0;
+		if (cursor != null)
+		{
+			int index = Collections.binarySearch(linked, cursor);
+			position = index >= 0 ? index + 1 : -index - 1;
+		}
+		if (position >= pass.size())
+		{
+			pass = List.of();
+			position = 0;
+			cursor = null;
+			return false;
+		}
+		return true;
+	}
+	
+	private void reconcileBatch(List<UUID> batch) throws InterruptedException
+	{
+		//fetch the whole batch from discord in one request, then each user's sync is served from the member cache
+		ArrayList<User> users = new ArrayList<>();
+		ArrayList<Long> discordIDs = new ArrayList<>();
+		Set<UUID> online = online(batch);
+		for (UUID minecraftUUID : batch)
+		{
+			//online players are kept in line by their join sync and discord's role events
+			if (online.contains(minecraftUUID))
+				continue;
+			User user = new User(plugin, minecraftUUID);
+			if (user.getDiscordID() == 0)
+				continue;
+			users.add(user);
+			discordIDs.add(user.getDiscordID());
+		}
+		Guild guild = plugin.bot().guild;
+		if (guild != null && !discordIDs.isEmpty())
+		{
+			HashMap<Long, Member> members = new HashMap<>();
+			for (Member member : plugin.blocking().call(BlockingExecutor.Kind.DISCORD, () -> guild.retrieveMembersByIds(discordIDs).get()))
+				members.put(member.getIdLong(), member);
+			for (long discordID : discordIDs)
+				plugin.bot().memberCache().put(discordID, members.get(discordID));
+			Thread.sleep(TimeUnit.NANOSECONDS.toMillis(requestInterval));
+		}
+		
+		for (User user : users)
+		{
+			if (!active())
+				return;
+			//through the sync pipeline, so this can't race a sync of the same user, the pipeline logs any failure
+			try
+			{
+				plugin.syncPipeline().submitRoleUpdate(user).get();
+			}
+			catch (ExecutionException ignored)
+			{
+				
+			}
+			usersVisited++;
+			Thread.sleep(TimeUnit.NANOSECONDS.toMillis(requestInterval));
+		}
+		
+		position += batch.size();
+		cursor = batch.get(batch.size() - 1);
+		writeCursor(cursor);
+	}
+	
+	/**
+	 * Finds which of the given users are online, checked on the main thread
+	 * @param batch
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private Set<UUID> online(List<UUID> batch) throws InterruptedException
+	{
+		CompletableFuture<Set<UUID>> online = new CompletableFuture<>();
+		plugin.syncPipeline().runOnMainThread(() ->
+		{
+			HashSet<UUID> players = new HashSet<>();
+			for (UUID minecraftUUID : batch)
+				if (Bukkit.getPlayer(minecraftUUID) != null)
+					players.add(minecraftUUID);
+			online.complete(players);
+		});
+		try
+		{
+			return online.get();
+		}
+		catch (ExecutionException exception)
+		{
+			throw new CompletionException(exception.getCause());
+		}
+	}
+	
+	private UUID readCursor()
+	{
+		try
+		{
+			if (cursorFile.exists())
+				return UUID.fromString(Files.readString(cursorFile.toPath(), StandardCharsets.UTF_8).trim());
+		}
+		catch (IOException | IllegalArgumentException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not read " + cursorFile.getName() + ", the background reconcile will start from the beginning.");
+		}
+		return null;
+	}
+	
+	private void writeCursor(UUID cursor)
+	{
+		try
+		{
+			if (cursor == null)
+				Files.deleteIfExists(cursorFile.toPath());
+			else
+				Files.writeString(cursorFile.toPath(), cursor.toString(), StandardCharsets.UTF_8);
+		}
+		catch (IOException exception)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not save the background reconcile position.", exception);
+		}
+	}
+	
+	/**
+	 * Returns how far through the current pass the reconciler is
+	 * @return a value from 0 to 1
+	 */
+	public double progress()
+	{
+		List<UUID> pass = this.pass;
+		return pass.isEmpty() ? 0 : Math.min(1, position / (double)pass.size());
+	}
+	
+	/**
+	 * Stops working through users, the position reached so far has already been saved
+	 */
+	public void shutdown()
+	{
+		running = false;
+		if (worker != null)
+			worker.interrupt();
+	}
+}
\ No newline at end of file
@@ -1,10 +1,12 @@
 package discordSync;
 
+import net.dv8tion.jda.api.*;
 import net.luckperms.api.*;
 import net.luckperms.api.model.group.*;
 import org.bukkit.configuration.*;
 
 import java.util.*;
+import java.util.logging.*;
 
 public class Role
 {
@@ -12,22 +14,43 @@ public class Role
 	public static final String DISCORD_ROLE_ID = "discord-role-id";
 	public static final String LUCK_PERMS_GROUP_NAME = "luck-perms-group-name";
 	
-	static final ArrayList<Role> roles = new ArrayList<>();
+	static volatile RoleRegistry registry = RoleRegistry.EMPTY;
 	
 	/**
 	 * Loads the role list from the config file
+	 * <p>
+	 *     The new list replaces the old one all at once.
+	 * </p>
 	 * @param plugin
 	 */
 	public static void loadRoleList(DiscordSync plugin)
 	{
-		roles.clear();
+		ArrayList<Role> roles = new ArrayList<>();
 		ConfigurationSection roleList = plugin.getConfig().getConfigurationSection(ROLE_LIST);
-		Set<String> keys = roleList.getKeys(false);
-		for (String key : keys)
+		if (roleList != null)
 		{
-			ConfigurationSection role = roleList.getConfigurationSection(key);
-			roles.add(new Role(plugin, key, role.getLong(DISCORD_ROLE_ID), role.getString(LUCK_PERMS_GROUP_NAME)));
+			Set<String> keys = roleList.getKeys(false);
+			for (String key : keys)
+			{
+				ConfigurationSection role = roleList.getConfigurationSection(key);
+				if (role == null || role.getString(LUCK_PERMS_GROUP_NAME) == null)
+				{
+					plugin.getLogger().log(Level.WARNING, "Role " + key + " has no " + LUCK_PERMS_GROUP_NAME + " set, it will be ignored.");
+					continue;
+				}
+				roles.add(new Role(plugin, key, role.getLong(DISCORD_ROLE_ID), role.getString(LUCK_PERMS_GROUP_NAME)));
+			}
 		}
+		registry = new RoleRegistry(roles);
+	}
+	
+	/**
+	 * Provides the current role registry
+	 * @return
+	 */
+	public static RoleRegistry registry()
+	{
+		return registry;
 	}
 	
 	/**
@@ -36,7 +59,7 @@ public class Role
 	 */
 	public static int roleCount()
 	{
-		return roles.size();
+		return registry.size();
 	}
 	
 	/**
@@ -46,7 +69,7 @@ public class Role
 	 */
 	public static Role getRole(int index)
 	{
-		return roles.get(index);
+		return registry.get(index);
 	}
 	
 	/**
@@ -56,10 +79,7 @@ public class Role
 	 */
 	public static Role getRoleByName(String name)
 	{
-		for (Role role : roles)
-			if (role.name.equals(name))
-				return role;
-		return null;
+		return registry.getByName(name);
 	}
 	
 	/**
@@ -69,23 +89,20 @@ public class Role
 	 */
 	public static Role getRoleByID(long discordRoleID)
 	{
-		for (Role role : roles)
-			if (role.discordRoleID == discordRoleID)
-				return role;
-		return null;
+		return registry.getByID(discordRoleID);
 	}
 	
 	/**
 	 * Gets the role that corresponds with the given luck perms group
+	 * <p>
+	 *     Group names are compared ignoring case, as LuckPerms does.
+	 * </p>
 	 * @param luckPermsGroupName
 	 * @return
 	 */
 	public static Role getRoleByGroup(String luckPermsGroupName)
 	{
-		for (Role role : roles)
-			if (role.luckPermsGroupName.equals(luckPermsGroupName))
-				return role;
-		return null;
+		return registry.getByGroup(luckPermsGroupName);
 	}
 	
 	final String name;
@@ -93,21 +110,26 @@ public class Role
 	final String luckPermsGroupName;
 	final DiscordSync plugin;
 	
-	net.dv8tion.jda.api.entities.Role discordRole;
-	
-	private Role(DiscordSync plugin, String name, long discordRoleID, String luckPermsGroupName)
+	Role(DiscordSync plugin, String name, long discordRoleID, String luckPermsGroupName)
 	{
 		this.plugin = plugin;
 		this.name = name;
 		this.discordRoleID = discordRoleID;
 		this.luckPermsGroupName = luckPermsGroupName;
-		
-		discordRole = plugin.bot().jda.getRoleById(discordRoleID);
 	}
 	
+	/**
+	 * Gets the discord role for this role
+	 * <p>
+	 *     Looked up from the bot's cache each time, so it stays correct if the role is recreated in discord. Returns
+	 *     null if the bot isn't running or the role doesn't exist.
+	 * </p>
+	 * @return
+	 */
 	public net.dv8tion.jda.api.entities.Role getDiscordRole()
 	{
-		return discordRole;
+		JDA jda = plugin.bot().jda;
+		return jda == null ? null : jda.getRoleById(discordRoleID);
 	}
 	
 	public Group getLuckPermsGroup()
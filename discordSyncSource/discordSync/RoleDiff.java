@@ -0,0 +1,160 @@
+package discordSync;
+
+import net.dv8tion.jda.api.entities.*;
+import net.luckperms.api.node.*;
+import net.luckperms.api.node.types.*;
+
+import java.util.*;
+
+/**
+ * The LuckPerms group changes needed to bring a user in line with their discord roles
+ * <p>
+ *     Only groups that are mapped to a role are ever added or removed, and groups the user already has (or already
+ *     doesn't have) are left alone, so applying an empty diff doesn't touch LuckPerms at all.
+ * </p>
+ */
+public class RoleDiff
+{
+	final Set<String> groupsToAdd;
+	final Set<String> groupsToRemove;
+	
+	RoleDiff(Set<String> groupsToAdd, Set<String> groupsToRemove)
+	{
+		this.groupsToAdd = groupsToAdd;
+		this.groupsToRemove = groupsToRemove;
+	}
+	
+	/**
+	 * Computes the changes needed for a user with the given discord roles and LuckPerms groups
+	 * @param discordRoleIDs the IDs of the discord roles the member has
+	 * @param currentGroups the names of the groups the user directly inherits in LuckPerms
+	 * @return
+	 */
+	public static RoleDiff compute(Collection<Long> discordRoleIDs, Collection<String> currentGroups)
+	{
+		Set<String> desiredGroups = new HashSet<>();
+		for (long discordRoleID : discordRoleIDs)
+		{
+			Role role = Role.getRoleByID(discordRoleID);
+			if (role != null)
+				desiredGroups.add(role.luckPermsGroupName.toLowerCase(Locale.ROOT));
+		}
+		
+		Set<String> current = new HashSet<>();
+		for (String group : currentGroups)
+			current.add(group.toLowerCase(Locale.ROOT));
+		
+		Set<String> groupsToAdd = new HashSet<>();
+		for (String group : desiredGroups)
+			if (!current.contains(group))
+				groupsToAdd.add(group);
+		
+		Set<String> groupsToRemove = new HashSet<>();
+		for (String group : current)
+			if (!desiredGroups.contains(group) && Role.getRoleByGroup(group) != null)
+				groupsToRemove.add(group);
+		
+		return new RoleDiff(groupsToAdd, groupsToRemove);
+	}
+	
+	/**
+	 * Computes the changes needed to bring a LuckPerms user in line with a set of discord roles
+	 * @param discordRoleIDs the IDs of the discord roles the member has
+	 * @param user
+	 * @return
+	 */
+	public static RoleDiff compute(Collection<Long> discordRoleIDs, net.luckperms.api.model.user.User user)
+	{
+		return compute(discordRoleIDs, currentGroups(user));
+	}
+	
+	/**
+	 * Computes the changes needed to bring a LuckPerms user in line with a discord member's roles
+	 * @param member
+	 * @param user
+	 * @return
+	 */
+	public static RoleDiff compute(Member member, net.luckperms.api.model.user.User user)
+	{
+		List<Long> discordRoleIDs = new ArrayList<>();
+		for (net.dv8tion.jda.api.entities.Role discordRole : member.getRoles())
+			discordRoleIDs.add(discordRole.getIdLong());
+		return compute(discordRoleIDs, user);
+	}
+	
+	/**
+	 * Gets the names of the groups a LuckPerms user directly inherits
+	 * <p>
+	 *     Only plain group memberships count, the same kind that {@link #applyTo} adds and removes. Groups held only in
+	 *     some contexts or only temporarily are left for whoever gave them out.
+	 * </p>
+	 * @param user
+	 * @return
+	 */
+	public static Set<String> currentGroups(net.luckperms.api.model.user.User user)
+	{
+		Set<String> groups = new HashSet<>();
+		for (InheritanceNode node : user.getNodes(NodeType.INHERITANCE))
+			if (isSynced(node))
+				groups.add(node.getGroupName());
+		return groups;
+	}
+	
+	/**
+	 * Checks if a node is a plain, permanent group membership, the only kind that is synced with discord
+	 * @param node
+	 * @return
+	 */
+	public static boolean isSynced(Node node)
+	{
+		return node.getValue() && node.getContexts().isEmpty() && !node.hasExpiry();
+	}
+	
+	/**
+	 * Checks if there are no changes to apply
+	 * @return
+	 */
+	public boolean isEmpty()
+	{
+		return groupsToAdd.isEmpty() && groupsToRemove.isEmpty();
+	}
+	
+	/**
+	 * Gets the names of the groups that need to be added
+	 * @return
+	 */
+	public Set<String> groupsToAdd()
+	{
+		return Collections.unmodifiableSet(groupsToAdd);
+	}
+	
+	/**
+	 * Gets the names of the groups that need to be removed
+	 * @return
+	 */
+	public Set<String> groupsToRemove()
+	{
+		return Collections.unmodifiableSet(groupsToRemove);
+	}
+	
+	/**
+	 * Applies every change to the given user
+	 * <p>
+	 *     This only modifies the loaded user, it is up to the caller to save it afterwards.
+	 * </p>
+	 * @param user
+	 */
+	public void applyTo(net.luckperms.api.model.user.User user)
+	{
+		for (String group : groupsToAdd)
+			user.data().add(InheritanceNode.builder(group).build());
+		for (String group : groupsToRemove)
+			user.data().remove(InheritanceNode.builder(group).build());
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "+" + groupsToAdd + " -" + groupsToRemove;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,151 @@
+package discordSync;
+
+import java.util.*;
+
+/**
+ * An immutable set of roles, indexed by discord role ID, LuckPerms group name and config name
+ * <p>
+ *     A new registry is built every time the role list is loaded and swapped in as a whole, so lookups never see a
+ *     partially loaded list and never need to lock. When several roles share a discord role, group or name, the first
+ *     one in the config wins.
+ * </p>
+ */
+public class RoleRegistry
+{
+	static final RoleRegistry EMPTY = new RoleRegistry(List.of());
+	
+	final List<Role> roles;
+	final LongObjectMap<Role> byDiscordRoleID;
+	final HashMap<String, Role> byGroup = new HashMap<>();
+	final HashMap<String, Role> byName = new HashMap<>();
+	
+	public RoleRegistry(List<Role> roles)
+	{
+		this.roles = List.copyOf(roles);
+		LongObjectMap.Builder<Role> byDiscordRoleID = new LongObjectMap.Builder<>();
+		for (Role role : this.roles)
+		{
+			byDiscordRoleID.putIfAbsent(role.discordRoleID, role);
+			byGroup.putIfAbsent(role.luckPermsGroupName.toLowerCase(Locale.ROOT), role);
+			byName.putIfAbsent(role.name, role);
+		}
+		this.byDiscordRoleID = byDiscordRoleID.build();
+	}
+	
+	/**
+	 * Returns the number of roles
+	 * @return
+	 */
+	public int size()
+	{
+		return roles.size();
+	}
+	
+	/**
+	 * Gets the role at the given index, in the order they are defined in the config
+	 * @param index
+	 * @return
+	 */
+	public Role get(int index)
+	{
+		return roles.get(index);
+	}
+	
+	/**
+	 * Gets every role, in the order they are defined in the config
+	 * @return
+	 */
+	public List<Role> roles()
+	{
+		return roles;
+	}
+	
+	/**
+	 * Gets the role that corresponds with the given discord role
+	 * @param discordRoleID
+	 * @return
+	 */
+	public Role getByID(long discordRoleID)
+	{
+		return byDiscordRoleID.get(discordRoleID);
+	}
+	
+	/**
+	 * Gets the role that corresponds with the given luck perms group, ignoring case
+	 * @param luckPermsGroupName
+	 * @return
+	 */
+	public Role getByGroup(String luckPermsGroupName)
+	{
+		return byGroup.get(luckPermsGroupName.toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * Gets the role with the given name
+	 * @param name
+	 * @return
+	 */
+	public Role getByName(String name)
+	{
+		return byName.get(name);
+	}
+	
+	/**
+	 * Works out which discord roles and LuckPerms groups are mapped differently in another registry
+	 * <p>
+	 *     A mapping is a discord role paired with a group, any mapping that is only in one of the two registries counts as
+	 *     a change to both its discord role and its group.
+	 * </p>
+	 * @param other
+	 * @return
+	 */
+	public MappingChanges changesTo(RoleRegistry other)
+	{
+		Set<String> mappings = mappings();
+		Set<String> otherMappings = other.mappings();
+		MappingChanges changes = new MappingChanges(new HashSet<>(), new HashSet<>());
+		for (Role role : roles)
+			if (!otherMappings.contains(mapping(role)))
+				changes.add(role);
+		for (Role role : other.roles)
+			if (!mappings.contains(mapping(role)))
+				changes.add(role);
+		return changes;
+	}
+	
+	private Set<String> mappings()
+	{
+		HashSet<String> mappings = new HashSet<>();
+		for (Role role : roles)
+			mappings.add(mapping(role));
+		return mappings;
+	}
+	
+	private static String mapping(Role role)
+	{
+		return role.discordRoleID + ":" + role.luckPermsGroupName.toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * The discord roles and LuckPerms groups whose mappings changed between two registries
+	 * @param discordRoleIDs
+	 * @param groups lowercase group names
+	 */
+	public record MappingChanges(Set<Long> discordRoleIDs, Set<String> groups)
+	{
+		void add(Role role)
+		{
+			discordRoleIDs.add(role.discordRoleID);
+			groups.add(role.luckPermsGroupName.toLowerCase(Locale.ROOT));
+		}
+		
+		/**
+		 * Checks if nothing changed
+		 * @return
+		 */
+		public boolean isEmpty()
+		{
+			return discordRoleIDs.isEmpty() && groups.isEmpty();
+		}
+	}
+}
\ No newline at end of file
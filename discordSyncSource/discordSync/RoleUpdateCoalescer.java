@@ -0,0 +1,82 @@
+package discordSync;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes discord role changes to LuckPerms as they happen
+ * <p>
+ *     When a member gains or loses a role in discord, an update for the linked user is scheduled after a short delay.
+ *     Any further changes to the same member before that delay is up are folded into the same update, so mass role
+ *     edits result in a single LuckPerms change per user. The update itself runs on the sync pipeline and only applies
+ *     the groups that actually differ.
+ * </p>
+ */
+public class RoleUpdateCoalescer
+{
+	public static final String COALESCE_DELAY = "role-updates.coalesce-delay";
+	
+	final DiscordSync plugin;
+	final ScheduledExecutorService scheduler;
+	final ConcurrentHashMap<Long, Boolean> pending = new ConcurrentHashMap<>();
+	final long coalesceDelay;
+	
+	public RoleUpdateCoalescer(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		coalesceDelay = Math.max(0, plugin.getConfig().getLong(COALESCE_DELAY, 250));
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DiscordSync-RoleUpdates");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Called when a guild member's roles have changed in discord
+	 * @param discordID
+	 */
+	public void memberRolesChanged(long discordID)
+	{
+		//an update is already scheduled for this member, it will pick up this change as well
+		if (pending.putIfAbsent(discordID, Boolean.TRUE) != null)
+			return;
+		try
+		{
+			scheduler.schedule(() -> update(discordID), coalesceDelay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			pending.remove(discordID);
+		}
+	}
+	
+	private void update(long discordID)
+	{
+		//removed before reading the member, so any change that arrives from now on schedules a new update
+		pending.remove(discordID);
+		UUID minecraftUUID = plugin.userIndex().getByDiscordID(discordID);
+		if (minecraftUUID == null)
+			return;
+		plugin.syncPipeline().submitRoleUpdate(new User(plugin, minecraftUUID));
+	}
+	
+	/**
+	 * Returns the number of members with an update waiting to be applied
+	 * @return
+	 */
+	public int pendingCount()
+	{
+		return pending.size();
+	}
+	
+	/**
+	 * Stops scheduling updates, anything still pending will be picked up the next time the user is synced
+	 */
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+		pending.clear();
+	}
+}
\ No newline at end of file
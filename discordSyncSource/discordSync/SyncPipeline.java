@@ -0,0 +1,371 @@
+package discordSync;
+
+import org.bukkit.*;
+import org.bukkit.entity.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Runs user syncs off the main server thread
+ * <p>
+ *     Each user has their own queue, so their syncs and role updates happen one at a time in the order they were queued,
+ *     while different users are synced side by side. The blocking Discord, LuckPerms and disk work runs on the plugin's
+ *     {@link BlockingExecutor}, whose limits decide how many users are actually synced at once, so it never stalls the
+ *     server tick. Anything that has to interact with players is handed back to the main thread. A user that is already
+ *     waiting in the queue is only synced once.
+ * </p>
+ */
+public class SyncPipeline
+{
+	final DiscordSync plugin;
+	//the last piece of work queued for each user that has any waiting or running
+	final ConcurrentHashMap<UUID, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<UUID, CompletableFuture<Void>> queued = new ConcurrentHashMap<>();
+	final EnumMap<Stage, StageTimings> timings = new EnumMap<>(Stage.class);
+	//users that couldn't be synced while the bot was unavailable, and their name if they were online
+	final ConcurrentHashMap<UUID, Optional<String>> deferred = new ConcurrentHashMap<>();
+	volatile boolean running = true;
+	
+	public SyncPipeline(DiscordSync plugin)
+	{
+		this.plugin = plugin;
+		for (Stage stage : Stage.values())
+			timings.put(stage, new StageTimings());
+	}
+	
+	/**
+	 * Queues a sync for the given user
+	 * <p>
+	 *     If the user is already waiting to be synced, the existing queued sync is returned instead of adding another.
+	 * </p>
+	 * @param user
+	 * @return a future that completes once the sync has finished
+	 */
+	public CompletableFuture<Void> submit(User user)
+	{
+		//capture the player's current name while we are still on the calling thread
+		Player player = user.getPlayer();
+		return submit(user, player != null ? player.getName() : null);
+	}
+	
+	/**
+	 * Queues a sync for the given user, who may be online on another server in the network
+	 * @param user
+	 * @param onlineName the player's name if they are online, otherwise null
+	 * @return a future that completes once the sync has finished
+	 */
+	CompletableFuture<Void> submit(User user, String onlineName)
+	{
+		long queuedTime = System.nanoTime();
+		
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		CompletableFuture<Void> existing = queued.putIfAbsent(user.minecraftUUID, future);
+		if (existing != null)
+			return existing;
+		enqueue(user.minecraftUUID, () ->
+		{
+			queued.remove(user.minecraftUUID, future);
+			record(Stage.QUEUED, queuedTime);
+			long startTime = System.nanoTime();
+			try
+			{
+				user.performSync(onlineName, this);
+				future.complete(null);
+			}
+			catch (Throwable exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Failed to sync user " + user.minecraftUUID + ".", exception);
+				future.completeExceptionally(exception);
+			}
+			record(Stage.TOTAL, startTime);
+		}).exceptionally(exception ->
+		{
+			queued.remove(user.minecraftUUID, future);
+			future.completeExceptionally(exception);
+			return null;
+		});
+		return future;
+	}
+	
+	/**
+	 * Queues an update of the given user's LuckPerms groups from their current discord roles
+	 * <p>
+	 *     Unlike a full sync this doesn't touch the user's stored data or message the player.
+	 * </p>
+	 * @param user
+	 * @return a future that completes once the update has finished
+	 */
+	public CompletableFuture<Void> submitRoleUpdate(User user)
+	{
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		enqueue(user.minecraftUUID, () ->
+		{
+			try
+			{
+				user.performRoleUpdate(this);
+				future.complete(null);
+			}
+			catch (Throwable exception)
+			{
+				plugin.getLogger().log(Level.WARNING, "Failed to update roles for user " + user.minecraftUUID + ".", exception);
+				future.completeExceptionally(exception);
+			}
+		}).exceptionally(exception ->
+		{
+			//shutting down, the user will be synced again when they next join
+			future.completeExceptionally(exception);
+			return null;
+		});
+		return future;
+	}
+	
+	/**
+	 * Runs a piece of work for a user once everything queued for them before it has finished
+	 * @param minecraftUUID
+	 * @param task
+	 * @return a future that completes once the work has run, or fails if the pipeline has been shut down
+	 */
+	CompletableFuture<Void> enqueue(UUID minecraftUUID, Runnable task)
+	{
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		if (!running)
+		{
+			done.completeExceptionally(new RejectedExecutionException("The sync pipeline has been shut down."));
+			return done;
+		}
+		CompletableFuture<Void> previous = tails.put(minecraftUUID, done);
+		Runnable start = () -> plugin.blocking().submit(() ->
+		{
+			task.run();
+			return null;
+		}).whenComplete((ignored, exception) ->
+		{
+			//the user has nothing else queued, unless something newer has taken this one's place
+			tails.remove(minecraftUUID, done);
+			if (exception == null)
+				done.complete(null);
+			else
+				done.completeExceptionally(exception);
+		});
+		if (previous == null)
+			start.run();
+		else
+			previous.whenComplete((ignored, exception) -> start.run());
+		return done;
+	}
+	
+	/**
+	 * Holds back a user's sync until the bot is connected to the discord server
+	 * <p>
+	 *     Only intended to be called from a sync that found the bot unavailable. If the bot is connected and discord
+	 *     itself failed to answer, the sync is dropped instead, and happens again the next time the user joins.
+	 * </p>
+	 * @param user
+	 * @param onlineName the player's name if they were online when the sync was queued, otherwise null
+	 */
+	void defer(User user, String onlineName)
+	{
+		if (plugin.bot().guild != null)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not sync user " + user.minecraftUUID + ", discord could not be reached.");
+			return;
+		}
+		//an online name is worth more than a later sync that didn't have one
+		deferred.merge(user.minecraftUUID, Optional.ofNullable(onlineName), (previous, next) -> next.isPresent() ? next : previous);
+	}
+	
+	/**
+	 * Queues every sync that was held back while the bot was unavailable
+	 * <p>
+	 *     Called once the bot has connected to the discord server.
+	 * </p>
+	 */
+	public void resumeDeferred()
+	{
+		for (UUID minecraftUUID : new ArrayList<>(deferred.keySet()))
+		{
+			Optional<String> onlineName = deferred.remove(minecraftUUID);
+			if (onlineName != null)
+				submit(new User(plugin, minecraftUUID), onlineName.orElse(null));
+		}
+	}
+	
+	/**
+	 * Returns the number of syncs held back until the bot is available
+	 * @return
+	 */
+	public int deferredCount()
+	{
+		return deferred.size();
+	}
+	
+	/**
+	 * Runs the given task on the main server thread
+	 * @param task
+	 */
+	public void runOnMainThread(Runnable task)
+	{
+		if (Bukkit.isPrimaryThread())
+			task.run();
+		else if (plugin.isEnabled())
+			Bukkit.getScheduler().runTask(plugin, task);
+	}
+	
+	/**
+	 * Records how long a stage took
+	 * @param stage
+	 * @param startTime the {@link System#nanoTime()} when the stage started
+	 */
+	void record(Stage stage, long startTime)
+	{
+		timings.get(stage).record(System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Returns the number of syncs waiting to be performed
+	 * @return
+	 */
+	public int queueDepth()
+	{
+		return queued.size();
+	}
+	
+	/**
+	 * Gets the latency statistics for a stage of the sync process
+	 * @param stage
+	 * @return
+	 */
+	public StageTimings timings(Stage stage)
+	{
+		return timings.get(stage);
+	}
+	
+	/**
+	 * Stops accepting new syncs and waits a short time for the queued ones to finish
+	 */
+	public void shutdown()
+	{
+		running = false;
+		try
+		{
+			CompletableFuture.allOf(tails.values().toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Gave up waiting for " + queueDepth() + " queued syncs to finish.");
+		}
+		catch (ExecutionException e)
+		{
+			//already logged by whatever failed
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public enum Stage
+	{
+		TOTAL,
+		QUEUED,
+		DISCORD,
+		STORAGE,
+		LUCK_PERMS
+	}
+	
+	/**
+	 * Latency statistics for one stage of the sync process
+	 * <p>
+	 *     Also used for other timed operations. Along with the count, average and maximum, durations are counted into
+	 *     fixed histogram buckets so they can be exported.
+	 * </p>
+	 */
+	public static class StageTimings
+	{
+		//upper bounds of the histogram buckets in milliseconds, anything longer only counts towards the total
+		static final double[] BUCKET_BOUNDS_MILLIS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+		
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length];
+		
+		public StageTimings()
+		{
+			for (int index = 0; index < buckets.length; index++)
+				buckets[index] = new LongAdder();
+		}
+		
+		void record(long nanos)
+		{
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+			double millis = nanos / 1_000_000d;
+			for (int index = 0; index < buckets.length; index++)
+			{
+				if (millis <= BUCKET_BOUNDS_MILLIS[index])
+				{
+					buckets[index].increment();
+					break;
+				}
+			}
+		}
+		
+		/**
+		 * Returns the number of durations at or below each of the {@link #BUCKET_BOUNDS_MILLIS}
+		 * @return
+		 */
+		public long[] cumulativeBuckets()
+		{
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int index = 0; index < buckets.length; index++)
+			{
+				total += buckets[index].sum();
+				counts[index] = total;
+			}
+			return counts;
+		}
+		
+		/**
+		 * Returns the total time spent in this stage in seconds
+		 * @return
+		 */
+		public double totalSeconds()
+		{
+			return totalNanos.sum() / 1_000_000_000d;
+		}
+		
+		/**
+		 * Returns the number of times this stage has run
+		 * @return
+		 */
+		public long count()
+		{
+			return count.sum();
+		}
+		
+		/**
+		 * Returns the average time this stage has taken in milliseconds
+		 * @return
+		 */
+		public double averageMillis()
+		{
+			long count = count();
+			return count == 0 ? 0 : totalNanos.sum() / (double)count / 1_000_000;
+		}
+		
+		/**
+		 * Returns the longest time this stage has taken in milliseconds
+		 * @return
+		 */
+		public double maxMillis()
+		{
+			return maxNanos.get() / 1_000_000d;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,66 @@
+package discordSync;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A lock-free token bucket rate limiter
+ * <p>
+ *     Rather than counting tokens, the bucket tracks the time at which it will be full again, which fits in a single
+ *     atomic value. Taking a token pushes that time forward by one refill interval, and is refused if it would be pushed
+ *     further than the bucket's capacity allows.
+ * </p>
+ */
+public class TokenBucket
+{
+	final int capacity;
+	final long refillIntervalNanos;
+	//the time at which the bucket will be full again, anything in the past means it is already full
+	final AtomicLong fullAt;
+	
+	/**
+	 * @param capacity maximum number of tokens that can be taken in a burst
+	 * @param refillPerMinute number of tokens added back each minute
+	 */
+	public TokenBucket(int capacity, double refillPerMinute)
+	{
+		this.capacity = Math.max(1, capacity);
+		refillIntervalNanos = (long)(TimeUnit.MINUTES.toNanos(1) / Math.max(refillPerMinute, 0.001));
+		fullAt = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token if one is available
+	 * @return true if a token was taken
+	 */
+	public boolean tryAcquire()
+	{
+		long now = System.nanoTime();
+		while (true)
+		{
+			long current = fullAt.get();
+			long next = Math.max(current - now, 0) + now + refillIntervalNanos;
+			if (next - now > capacity * refillIntervalNanos)
+				return false;
+			if (fullAt.compareAndSet(current, next))
+				return true;
+		}
+	}
+	
+	/**
+	 * Puts back a token that was taken but not used
+	 */
+	public void release()
+	{
+		fullAt.addAndGet(-refillIntervalNanos);
+	}
+	
+	/**
+	 * Checks if no tokens have been taken since the bucket last refilled
+	 * @return
+	 */
+	public boolean isFull()
+	{
+		return fullAt.get() - System.nanoTime() <= 0;
+	}
+}
@@ -1,12 +1,9 @@
 package discordSync;
 
 import net.dv8tion.jda.api.entities.*;
-import net.dv8tion.jda.api.exceptions.*;
 import net.luckperms.api.*;
-import net.luckperms.api.model.group.*;
 import net.luckperms.api.model.user.*;
 import net.luckperms.api.node.*;
-import net.luckperms.api.query.*;
 import org.bukkit.*;
 import org.bukkit.command.*;
 import org.bukkit.configuration.file.*;
@@ -14,35 +11,36 @@ import org.bukkit.entity.*;
 import org.jetbrains.annotations.*;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
 
 public class User
 {
 	public static final String DISCORD_UUID = "discord-uuid";
 	public static final String LAST_SEEN_MINECRAFT_NAME = "last-seen-minecraft-name";
+	public static final String NO_NAME = "no name found";
 	
 	final DiscordSync plugin;
 	
 	final UUID minecraftUUID;
-	FileConfiguration data;
+	final UserRecord record;
 	
 	public User(DiscordSync plugin, UUID minecraftUUID)
 	{
 		this.plugin = plugin;
 		this.minecraftUUID = minecraftUUID;
-		if (!dataFile().exists())
-		{
-			try
-			{
-				data = YamlConfiguration.loadConfiguration(new StringReader(getDefaultUserData()));
-				data.save(dataFile());
-			}
-			catch (IOException e)
-			{
-				throw new RuntimeException(e);
-			}
-		}
-		data = YamlConfiguration.loadConfiguration(dataFile());
+		//new users are only kept in memory until something about them changes
+		UserRecord stored = plugin.userStore().load(minecraftUUID);
+		record = stored != null ? stored : getDefaultUserData(minecraftUUID);
+	}
+	
+	User(DiscordSync plugin, UserRecord record)
+	{
+		this.plugin = plugin;
+		this.minecraftUUID = record.minecraftUUID;
+		this.record = record;
 	}
 	
 	/**
@@ -53,14 +51,8 @@ public class User
 	 */
 	public static User getByPlayerName(DiscordSync plugin, String name)
 	{
-		File[] users = plugin.userDataDirectory().listFiles();
-		for (File file : users)
-		{
-			User user = new User(plugin, UUID.fromString(file.getName().substring(0, file.getName().length() - 4)));
-			if (user.getLastSeenMinecraftName().equals(name))
-				return user;
-		}
-		return null;
+		UUID minecraftUUID = plugin.userIndex().getByName(name);
+		return minecraftUUID == null ? null : new User(plugin, minecraftUUID);
 	}
 	
 	/**
@@ -71,14 +63,8 @@ public class User
 	 */
 	public static User getByPlayerDiscordID(DiscordSync plugin, long discordUUID)
 	{
-		File[] users = plugin.userDataDirectory().listFiles();
-		for (File file : users)
-		{
-			User user = new User(plugin, UUID.fromString(file.getName().substring(0, file.getName().length() - 4)));
-			if (user.getDiscordID() == discordUUID)
-				return user;
-		}
-		return null;
+		UUID minecraftUUID = plugin.userIndex().getByDiscordID(discordUUID);
+		return minecraftUUID == null ? null : new User(plugin, minecraftUUID);
 	}
 	
 	/**
@@ -87,51 +73,132 @@ public class User
 	 */
 	public void setDiscordUuid(long discordUuid)
 	{
-		data.set(DISCORD_UUID, discordUuid);
+		record.setDiscordID(discordUuid);
 		saveData();
 		sync();
 	}
 	
-	public void sync()
+	/**
+	 * Queues this user to be synced on the plugin's sync pipeline
+	 * @return a future that completes once the sync has finished
+	 */
+	public CompletableFuture<Void> sync()
+	{
+		return plugin.syncPipeline().submit(this);
+	}
+	
+	/**
+	 * Performs the sync on the calling thread
+	 * <p>
+	 *     Only intended to be called from the sync pipeline, as it blocks on Discord, LuckPerms and disk.
+	 * </p>
+	 * @param onlineName the player's name if they were online when the sync was queued, otherwise null
+	 * @param pipeline
+	 */
+	void performSync(String onlineName, SyncPipeline pipeline)
 	{
-		net.luckperms.api.model.user.User user = getLuckPermsUser();
-		Member member = getGuildMember();
-		OfflinePlayer player = getOfflinePlayer();
-		
 		//if the player is online, then update the last seen name
-		if (player.isOnline())
+		long startTime;
+		if (onlineName != null)
+		{
+			startTime = System.nanoTime();
+			updateLastSeenName(onlineName);
+			pipeline.record(SyncPipeline.Stage.STORAGE, startTime);
+		}
+		
+		startTime = System.nanoTime();
+		Member member;
+		try
+		{
+			member = getGuildMember();
+		}
+		catch (MemberCache.UnavailableException e)
 		{
-			data.set(LAST_SEEN_MINECRAFT_NAME, player.getPlayer().getName());
-			saveData();
+			//we can't tell if they are linked, so try again once the bot is up rather than telling them to link
+			pipeline.defer(this, onlineName);
+			return;
 		}
+		pipeline.record(SyncPipeline.Stage.DISCORD, startTime);
 		
 		//if the accounts aren't linked then inform the player and cancel the sync
 		if (member == null)
 		{
-			if (player.isOnline())
-				player.getPlayer().sendMessage("§6[DiscordSync]§r You need to link your minecraft and discord accounts, run the §b/link-account§r command in discord to begin the process.");
+			if (onlineName != null)
+				sendNotLinkedMessage();
 			return;
 		}
 		
-		//make sure the player has all the roles that they have from discord
-		List<net.dv8tion.jda.api.entities.Role> roles = member.getRoles();
-		for (net.dv8tion.jda.api.entities.Role discordRole : roles)
+		applyDiscordRoles(member, pipeline);
+	}
+	
+	/**
+	 * Records the name this user currently has in minecraft
+	 * @param name
+	 */
+	void updateLastSeenName(String name)
+	{
+		record.setLastSeenName(name);
+		saveData();
+	}
+	
+	/**
+	 * Tells this user how to link their accounts, if they are online
+	 * <p>
+	 *     Can be called from any thread, the message is sent from the main thread, or passed on to the server in the
+	 *     network the player is on.
+	 * </p>
+	 */
+	void sendNotLinkedMessage()
+	{
+		plugin.cluster().tell(minecraftUUID, "§6[DiscordSync]§r You need to link your minecraft and discord accounts, run the §b/link-account§r command in discord to begin the process.");
+	}
+	
+	/**
+	 * Updates this user's LuckPerms groups from their current discord roles on the calling thread
+	 * <p>
+	 *     Only intended to be called from the sync pipeline.
+	 * </p>
+	 * @param pipeline
+	 */
+	void performRoleUpdate(SyncPipeline pipeline)
+	{
+		long startTime = System.nanoTime();
+		Member member;
+		try
 		{
-			Role role = Role.getRoleByID(discordRole.getIdLong());
-			if (role != null)
-				giveRole(role, Side.MINECRAFT);
+			member = getGuildMember();
 		}
+		catch (MemberCache.UnavailableException e)
+		{
+			//the bot isn't up, the user is synced again once it is
+			pipeline.defer(this, null);
+			return;
+		}
+		pipeline.record(SyncPipeline.Stage.DISCORD, startTime);
+		if (member != null)
+			applyDiscordRoles(member, pipeline);
+	}
+	
+	/**
+	 * Brings this user's LuckPerms groups in line with the given member's discord roles
+	 * @param member
+	 * @param pipeline
+	 */
+	private void applyDiscordRoles(Member member, SyncPipeline pipeline)
+	{
+		long startTime = System.nanoTime();
+		net.luckperms.api.model.user.User user = getLuckPermsUser();
+		
+		//work out every group change first, so that all of them can be saved at once
+		RoleDiff diff = RoleDiff.compute(member, user);
 		
-		//remove any roles that the player does not have in discord
-		Collection<Group> groups = user.getInheritedGroups(QueryOptions.nonContextual());
-		for (Group group : groups)
+		//nothing to do if the groups are already in line with discord
+		if (!diff.isEmpty())
 		{
-			Role role = Role.getRoleByGroup(group.getName());
-			if (role != null && !roles.contains(role.getDiscordRole()))
-			{
-				removeRole(role, Side.MINECRAFT);
-			}
+			diff.applyTo(user);
+			plugin.blocking().awaitLuckPerms(LuckPermsProvider.get().getUserManager().saveUser(user));
 		}
+		pipeline.record(SyncPipeline.Stage.LUCK_PERMS, startTime);
 	}
 	
 	/**
@@ -140,9 +207,19 @@ public class User
 	 */
 	public Role[] getRoles()
 	{
-		List<net.dv8tion.jda.api.entities.Role> discordRoles = getGuildMember().getRoles();
+		Member member = getGuildMember();
+		return member == null ? new Role[0] : getRoles(member);
+	}
+	
+	/**
+	 * Gets the synced roles the given guild member has
+	 * @param member
+	 * @return
+	 */
+	static Role[] getRoles(Member member)
+	{
 		ArrayList<Role> roles = new ArrayList<>();
-		for (net.dv8tion.jda.api.entities.Role discordRole : discordRoles)
+		for (net.dv8tion.jda.api.entities.Role discordRole : member.getRoles())
 		{
 			Role role = Role.getRoleByID(discordRole.getIdLong());
 			if (role != null)
@@ -168,10 +245,7 @@ public class User
 	public void giveRole(Role role, Side side)
 	{
 		if (side.appliesToDiscord)
-		{
-			Member member = getGuildMember();
-			member.getGuild().addRoleToMember(member, role.getDiscordRole());
-		}
+			plugin.discordRoleQueue().queue(getDiscordID(), role.discordRoleID, true);
 		
 		if (side.appliesToMinecraft)
 		{
@@ -198,10 +272,7 @@ public class User
 	public void removeRole(Role role, Side side)
 	{
 		if (side.appliesToDiscord)
-		{
-			Member member = getGuildMember();
-			member.getGuild().removeRoleFromMember(member, role.getDiscordRole());
-		}
+			plugin.discordRoleQueue().queue(getDiscordID(), role.discordRoleID, false);
 		
 		if (side.appliesToMinecraft)
 		{
@@ -233,7 +304,7 @@ public class User
 	 */
 	public String getLastSeenMinecraftName()
 	{
-		return data.getString(LAST_SEEN_MINECRAFT_NAME, "no name found");
+		return record.getLastSeenName() == null ? NO_NAME : record.getLastSeenName();
 	}
 	
 	/**
@@ -265,40 +336,55 @@ public class User
 	
 	/**
 	 * Get the luck perms user for this user
+	 * <p>
+	 *     Users that aren't loaded, such as offline players, are loaded from LuckPerms' storage. This blocks for up to the
+	 *     blocking-calls.luck-perms-timeout, and throws if the user couldn't be loaded in time, so it shouldn't be called
+	 *     from the main thread.
+	 * </p>
 	 * @return
 	 */
 	public net.luckperms.api.model.user.User getLuckPermsUser()
 	{
 		UserManager manager = LuckPermsProvider.get().getUserManager();
-		if (!manager.isLoaded(minecraftUUID))
-			return manager.loadUser(minecraftUUID).getNow(null);
-		else
-			return manager.getUser(minecraftUUID);
+		net.luckperms.api.model.user.User user = manager.getUser(minecraftUUID);
+		if (user != null)
+			return user;
+		return plugin.blocking().awaitLuckPerms(manager.loadUser(minecraftUUID));
 	}
 	
 	/**
 	 * Check if this user has linked their discord and minecraft accounts
+	 * <p>
+	 *     A user whose discord account has left the guild is not linked. If that can't currently be checked, such as when
+	 *     the bot isn't running, the user counts as linked as long as they have a discord ID.
+	 * </p>
 	 * @return
 	 */
 	public boolean isLinked()
 	{
-		return getGuildMember() != null;
+		if (getDiscordID() == 0)
+			return false;
+		try
+		{
+			return getGuildMember() != null;
+		}
+		catch (MemberCache.UnavailableException e)
+		{
+			return true;
+		}
 	}
 	
 	/**
 	 * Get the discord guild member for this user
+	 * <p>
+	 *     Served from the member cache when possible, returns null if the user isn't linked or isn't in the guild.
+	 * </p>
 	 * @return
+	 * @throws MemberCache.UnavailableException if the bot can't currently check if they are in the guild
 	 */
 	public Member getGuildMember()
 	{
-		try
-		{
-			return plugin.bot().guild.retrieveMemberById(getDiscordID()).complete();
-		}
-		catch (ErrorResponseException e)
-		{
-			return null;
-		}
+		return plugin.bot().memberCache().get(getDiscordID());
 	}
 	
 	/**
@@ -307,28 +393,27 @@ public class User
 	 */
 	public long getDiscordID()
 	{
-		return data.getLong(DISCORD_UUID, 0);
+		return record.getDiscordID();
 	}
 	
 	/**
-	 * Get the file this user's data is stored in
-	 * @return
+	 * Records this user's current name and discord ID in the plugin's user index
 	 */
-	public File dataFile()
+	private void updateIndex()
 	{
-		return new File(plugin.userDataDirectory() + "/" + minecraftUUID + ".txt");
+		plugin.userIndex().update(minecraftUUID, getLastSeenMinecraftName(), getDiscordID());
 	}
 	
+	/**
+	 * Saves this user's data if anything has changed
+	 */
 	private void saveData()
 	{
-		try
-		{
-			data.save(dataFile());
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException(e);
-		}
+		if (!record.isDirty())
+			return;
+		plugin.userStore().save(record);
+		record.markClean();
+		updateIndex();
 	}
 	
 	/**
@@ -338,19 +423,53 @@ public class User
 	 */
 	public static User[] getUsers(DiscordSync plugin)
 	{
-		File[] userFiles = plugin.userDataDirectory().listFiles();
-		User[] users = new User[userFiles.length];
-		for (int index = 0; index < users.length; index++)
+		ArrayList<User> users = new ArrayList<>();
+		plugin.userStore().forEach(record -> users.add(new User(plugin, record)));
+		return users.toArray(new User[0]);
+	}
+	
+	static volatile Template template = new Template(0, NO_NAME);
+	
+	/**
+	 * Loads the default values for new users from the template in the plugin jar
+	 * <p>
+	 *     Only needs to be done once when the plugin is enabled, new users are then created from the loaded values.
+	 * </p>
+	 * @param plugin
+	 */
+	public static void loadTemplate(DiscordSync plugin)
+	{
+		InputStream stream = plugin.getResource("UserDataTemplate.yml");
+		if (stream == null)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not find UserDataTemplate.yml in the plugin jar, using built in defaults for new users.");
+			return;
+		}
+		try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8))
+		{
+			YamlConfiguration config = YamlConfiguration.loadConfiguration(reader);
+			template = new Template(config.getLong(DISCORD_UUID, 0), config.getString(LAST_SEEN_MINECRAFT_NAME, NO_NAME));
+		}
+		catch (IOException e)
 		{
-			users[index] = new User(plugin, UUID.fromString(userFiles[index].getName().substring(0, userFiles[index].getName().length() - 4)));
+			plugin.getLogger().log(Level.WARNING, "Could not read UserDataTemplate.yml, using built in defaults for new users.", e);
 		}
-		return users;
 	}
 	
-	private static String getDefaultUserData()
+	private static UserRecord getDefaultUserData(UUID minecraftUUID)
+	{
+		Template template = User.template;
+		return new UserRecord(minecraftUUID, template.discordID, template.lastSeenName);
+	}
+	
+	/**
+	 * The values new users start out with
+	 * @param discordID
+	 * @param lastSeenName
+	 */
+	record Template(long discordID, String lastSeenName)
 	{
-		YamlConfiguration config = YamlConfiguration.loadConfiguration(new File("/UserDataTemplate.yml"));
-		return config.saveToString();
+		
 	}
 	
 	public static class ViewProfileCommand implements CommandExecutor
@@ -367,33 +486,73 @@ public class User
 		{
 			if (args.length == 1)
 			{
-				User user = User.getByPlayerName(plugin, args[0]);
-				if (user != null)
+				//looking the member up may have to ask discord, so it mustn't hold up the server
+				String name = args[0];
+				plugin.blocking().submit(() ->
+				{
+					String message = describe(name);
+					plugin.syncPipeline().runOnMainThread(() -> sender.sendMessage(message));
+					return null;
+				}).exceptionally(exception ->
 				{
-					if (user.isLinked())
-					{
-						StringBuilder builder = new StringBuilder();
-						builder.append("§6[DiscordSync]§r ").append(user.getLastSeenMinecraftName()).append("§b is§r @").append(user.getGuildMember().getUser().getName())
-							   .append(" §bon Discord, currently with the display name§r ").append(user.getGuildMember().getEffectiveName()).append("§b.\n§6Currently synced roles: (Discord Role: LuckPerms Group)§r");
-						Role[] roles = user.getRoles();
-						for (Role role : roles)
-						{
-							builder.append('\n').append(role.getDiscordRole().getName()).append(": ").append(role.getLuckPermsGroup().getName());
-						}
-						if (roles.length == 0)
-							builder.append("\nNone.");
-						
-						sender.sendMessage(builder.toString());
-					}
-					else
-						sender.sendMessage("§6[DiscordSync]§r " + user.getLastSeenMinecraftName() + "§b has not linked their accounts.");
-				}
-				else
-					sender.sendMessage("§6[DiscordSync]§b There is no profile with that name, the player has either never joined the server before or the name was not typed correctly.");
+					plugin.getLogger().log(Level.WARNING, "Failed to look up the profile of " + name + ".", exception);
+					plugin.syncPipeline().runOnMainThread(() -> sender.sendMessage("§6[DiscordSync]§b Could not look up that profile, check server console for details."));
+					return null;
+				});
 				return true;
 			}
 			sender.sendMessage("§6[DiscordSync]§b You must provide a player name.");
 			return false;
 		}
+		
+		/**
+		 * Describes the profile of the user with the given name
+		 * <p>
+		 *     Blocks on the user store and discord, so it mustn't be called from the main thread.
+		 * </p>
+		 * @param name
+		 * @return
+		 */
+		private String describe(String name)
+		{
+			User user = User.getByPlayerName(plugin, name);
+			if (user == null)
+				return "§6[DiscordSync]§b There is no profile with that name, the player has either never joined the server before or the name was not typed correctly.";
+			if (user.getDiscordID() == 0)
+				return "§6[DiscordSync]§r " + user.getLastSeenMinecraftName() + "§b has not linked their accounts.";
+			//in a network only the server that owns the bot can look members up
+			if (!plugin.cluster().isLeader())
+			{
+				String leaderID = plugin.cluster().leaderID();
+				return "§6[DiscordSync]§r " + user.getLastSeenMinecraftName() + "§b is linked to discord ID§r " + user.getDiscordID() + "§b, their discord details are only available on " +
+					   (leaderID == null ? "the server" : "server§r " + leaderID + "§b,") + " which runs the discord bot.";
+			}
+			
+			//fetched once, so the member can't leave the guild part way through
+			Member member;
+			try
+			{
+				member = user.getGuildMember();
+			}
+			catch (MemberCache.UnavailableException e)
+			{
+				return "§6[DiscordSync]§r " + user.getLastSeenMinecraftName() + "§b is linked to discord ID§r " + user.getDiscordID() + "§b, their discord details are unavailable while the discord bot " +
+					   "isn't connected.";
+			}
+			if (member == null)
+				return "§6[DiscordSync]§r " + user.getLastSeenMinecraftName() + "§b has not linked their accounts.";
+			
+			StringBuilder builder = new StringBuilder();
+			builder.append("§6[DiscordSync]§r ").append(user.getLastSeenMinecraftName()).append("§b is§r @").append(member.getUser().getName())
+				   .append(" §bon Discord, currently with the display name§r ").append(member.getEffectiveName()).append("§b.\n§6Currently synced roles: (Discord Role: LuckPerms Group)§r");
+			Role[] roles = getRoles(member);
+			for (Role role : roles)
+			{
+				builder.append('\n').append(role.getDiscordRole().getName()).append(": ").append(role.getLuckPermsGroup().getName());
+			}
+			if (roles.length == 0)
+				builder.append("\nNone.");
+			return builder.toString();
+		}
 	}
 }
\ No newline at end of file
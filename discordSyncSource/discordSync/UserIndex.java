@@ -0,0 +1,209 @@
+package discordSync;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory index of every known user, keyed by minecraft UUID, lowercase minecraft name and discord ID
+ * <p>
+ *     Built once when the plugin is enabled and kept current whenever a user's name or discord ID changes, so that
+ *     looking up a user doesn't require reading every stored user.
+ * </p>
+ */
+public class UserIndex
+{
+	final ConcurrentHashMap<UUID, Entry> byUUID = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<String, UUID> byName = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<Long, UUID> byDiscordID = new ConcurrentHashMap<>();
+	//every user with a name, kept in the order they are listed in, so listing them doesn't mean sorting every user again
+	final ConcurrentSkipListSet<Entry> listed = new ConcurrentSkipListSet<>(Comparator.comparing(Entry::name, String.CASE_INSENSITIVE_ORDER).thenComparing(Entry::minecraftUUID));
+	volatile int listedCount = 0;
+	
+	/**
+	 * Rebuilds the index from the plugin's user store
+	 * @param plugin
+	 */
+	public void build(DiscordSync plugin)
+	{
+		clear();
+		refresh(plugin);
+	}
+	
+	/**
+	 * Updates the index from the plugin's user store without clearing it first
+	 * <p>
+	 *     Lookups keep working while this runs, so it can be used to pick up changes other servers in a network have
+	 *     made to the shared store.
+	 * </p>
+	 * @param plugin
+	 */
+	public void refresh(DiscordSync plugin)
+	{
+		plugin.userStore().forEach(record -> update(record.minecraftUUID, record.lastSeenName, record.discordID));
+	}
+	
+	/**
+	 * Removes every entry from the index
+	 */
+	public synchronized void clear()
+	{
+		byUUID.clear();
+		byName.clear();
+		byDiscordID.clear();
+		listed.clear();
+		listedCount = 0;
+	}
+	
+	/**
+	 * Records the current name and discord ID of a user, replacing any previous entry for them
+	 * @param minecraftUUID
+	 * @param name
+	 * @param discordID 0 if the user is not linked
+	 */
+	public synchronized void update(UUID minecraftUUID, String name, long discordID)
+	{
+		Entry entry = new Entry(minecraftUUID, name, discordID);
+		Entry previous = byUUID.put(minecraftUUID, entry);
+		if (previous != null)
+		{
+			if (indexable(previous.name))
+			{
+				byName.remove(previous.name.toLowerCase(Locale.ROOT), minecraftUUID);
+				if (listed.remove(previous))
+					listedCount--;
+			}
+			if (previous.discordID != 0)
+				byDiscordID.remove(previous.discordID, minecraftUUID);
+		}
+		if (indexable(name))
+		{
+			byName.put(name.toLowerCase(Locale.ROOT), minecraftUUID);
+			if (listed.add(entry))
+				listedCount++;
+		}
+		if (discordID != 0)
+			byDiscordID.put(discordID, minecraftUUID);
+	}
+	
+	/**
+	 * Checks if a name can be looked up
+	 * <p>
+	 *     Users that have never been seen all share the placeholder name, so it can't be used to find any one of them.
+	 * </p>
+	 * @param name
+	 * @return
+	 */
+	private static boolean indexable(String name)
+	{
+		return name != null && !name.isEmpty() && !name.equals(User.NO_NAME);
+	}
+	
+	/**
+	 * Gets the UUID of the user who was last seen with the given name, ignoring case
+	 * <p>
+	 *     Returns null if no user has been seen with that name.
+	 * </p>
+	 * @param name
+	 * @return
+	 */
+	public UUID getByName(String name)
+	{
+		return byName.get(name.toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * Gets the UUID of the user linked to the given discord ID
+	 * <p>
+	 *     Returns null if no user is linked to that discord ID.
+	 * </p>
+	 * @param discordID
+	 * @return
+	 */
+	public UUID getByDiscordID(long discordID)
+	{
+		return byDiscordID.get(discordID);
+	}
+	
+	/**
+	 * Gets the index entry for the given user
+	 * <p>
+	 *     Returns null if the user is not known.
+	 * </p>
+	 * @param minecraftUUID
+	 * @return
+	 */
+	public Entry get(UUID minecraftUUID)
+	{
+		return byUUID.get(minecraftUUID);
+	}
+	
+	/**
+	 * Checks if the given user is known
+	 * @param minecraftUUID
+	 * @return
+	 */
+	public boolean contains(UUID minecraftUUID)
+	{
+		return byUUID.containsKey(minecraftUUID);
+	}
+	
+	/**
+	 * Gets the UUIDs of every known user
+	 * @return
+	 */
+	public Set<UUID> uuids()
+	{
+		return Collections.unmodifiableSet(byUUID.keySet());
+	}
+	
+	/**
+	 * Gets the entries of every known user
+	 * @return
+	 */
+	public Collection<Entry> entries()
+	{
+		return Collections.unmodifiableCollection(byUUID.values());
+	}
+	
+	/**
+	 * Gets the entries of every user with a known name, ordered by name ignoring case
+	 * <p>
+	 *     Users that have never been seen, and so only have the placeholder name, are left out.
+	 * </p>
+	 * @return
+	 */
+	public NavigableSet<Entry> listed()
+	{
+		return Collections.unmodifiableNavigableSet(listed);
+	}
+	
+	/**
+	 * Returns the number of users in {@link #listed()}
+	 * @return
+	 */
+	public int listedCount()
+	{
+		return listedCount;
+	}
+	
+	/**
+	 * Returns the number of known users
+	 * @return
+	 */
+	public int size()
+	{
+		return byUUID.size();
+	}
+	
+	public record Entry(UUID minecraftUUID, String name, long discordID)
+	{
+		/**
+		 * Checks if this user has linked their discord and minecraft accounts
+		 * @return
+		 */
+		public boolean linked()
+		{
+			return discordID != 0;
+		}
+	}
+}
\ No newline at end of file
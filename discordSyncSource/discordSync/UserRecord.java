@@ -0,0 +1,134 @@
+package discordSync;
+
+import java.util.*;
+
+/**
+ * The stored data for one user
+ */
+public class UserRecord
+{
+	final UUID minecraftUUID;
+	long discordID;
+	String lastSeenName;
+	//which fields have been changed since the record was loaded or last saved
+	boolean discordIDChanged = false;
+	boolean lastSeenNameChanged = false;
+	
+	public UserRecord(UUID minecraftUUID, long discordID, String lastSeenName)
+	{
+		this.minecraftUUID = minecraftUUID;
+		this.discordID = discordID;
+		this.lastSeenName = lastSeenName;
+	}
+	
+	public UUID getMinecraftUUID()
+	{
+		return minecraftUUID;
+	}
+	
+	/**
+	 * Gets the ID of the discord account this user is linked to
+	 * @return 0 if the user is not linked
+	 */
+	public long getDiscordID()
+	{
+		return discordID;
+	}
+	
+	public void setDiscordID(long discordID)
+	{
+		if (this.discordID != discordID)
+		{
+			this.discordID = discordID;
+			discordIDChanged = true;
+		}
+	}
+	
+	/**
+	 * Gets the minecraft name this user had when they were last on the server
+	 * @return
+	 */
+	public String getLastSeenName()
+	{
+		return lastSeenName;
+	}
+	
+	public void setLastSeenName(String lastSeenName)
+	{
+		if (!Objects.equals(this.lastSeenName, lastSeenName))
+		{
+			this.lastSeenName = lastSeenName;
+			lastSeenNameChanged = true;
+		}
+	}
+	
+	/**
+	 * Checks if this record has changed since it was loaded or last saved
+	 * @return
+	 */
+	public boolean isDirty()
+	{
+		return discordIDChanged || lastSeenNameChanged;
+	}
+	
+	/**
+	 * Checks if every field of this record has changed, so it doesn't depend on what is stored at all
+	 * @return
+	 */
+	public boolean isFullyChanged()
+	{
+		return discordIDChanged && lastSeenNameChanged;
+	}
+	
+	/**
+	 * Marks this record as matching what is stored
+	 */
+	public void markClean()
+	{
+		discordIDChanged = false;
+		lastSeenNameChanged = false;
+	}
+	
+	/**
+	 * Creates a record with the fields this record has changed laid over another record
+	 * <p>
+	 *     Fields this record hasn't changed keep the other record's values, so two writers that changed different
+	 *     fields of the same user don't undo each other's change. The result remembers the changes of both.
+	 * </p>
+	 * @param base the record to lay the changes over, or null to use this record's own values
+	 * @return
+	 */
+	public UserRecord over(UserRecord base)
+	{
+		if (base == null)
+			return changes();
+		UserRecord merged = new UserRecord(minecraftUUID, discordIDChanged ? discordID : base.discordID, lastSeenNameChanged ? lastSeenName : base.lastSeenName);
+		merged.discordIDChanged = discordIDChanged || base.discordIDChanged;
+		merged.lastSeenNameChanged = lastSeenNameChanged || base.lastSeenNameChanged;
+		return merged;
+	}
+	
+	/**
+	 * Creates an independent copy of this record that remembers which fields have changed
+	 * @return
+	 */
+	public UserRecord changes()
+	{
+		UserRecord changes = copy();
+		changes.discordIDChanged = discordIDChanged;
+		changes.lastSeenNameChanged = lastSeenNameChanged;
+		return changes;
+	}
+	
+	/**
+	 * Creates an independent copy of this record
+	 * <p>
+	 *     The copy starts out clean.
+	 * </p>
+	 * @return
+	 */
+	public UserRecord copy()
+	{
+		return new UserRecord(minecraftUUID, discordID, lastSeenName);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+package discordSync;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Persistent storage for user records
+ * <p>
+ *     The backend is chosen with the user-store.type config option. Records handed to or returned from a store are
+ *     never shared with it, so callers are free to modify them.
+ * </p>
+ */
+public interface UserStore
+{
+	String TYPE = "user-store.type";
+	
+	/**
+	 * Loads the record for the given user
+	 * <p>
+	 *     Returns null if nothing is stored for the user.
+	 * </p>
+	 * @param minecraftUUID
+	 * @return
+	 */
+	UserRecord load(UUID minecraftUUID);
+	
+	/**
+	 * Stores a record, replacing anything previously stored for that user
+	 * @param record
+	 */
+	void save(UserRecord record);
+	
+	/**
+	 * Stores several records at once
+	 * <p>
+	 *     Backends that can write in bulk should do so, rather than saving each record separately.
+	 * </p>
+	 * @param records
+	 */
+	default void saveAll(Collection<UserRecord> records)
+	{
+		for (UserRecord record : records)
+			save(record);
+	}
+	
+	/**
+	 * Passes every stored record to the given consumer
+	 * @param consumer
+	 */
+	void forEach(Consumer<UserRecord> consumer);
+	
+	/**
+	 * Flushes anything outstanding and releases any open files
+	 */
+	void close();
+	
+	/**
+	 * Creates the store selected in the config, migrating existing yaml files into it if needed
+	 * <p>
+	 *     Writes to the store are batched by a {@link WriteBehindUserStore}.
+	 * </p>
+	 * @param plugin
+	 * @return
+	 */
+	static UserStore create(DiscordSync plugin)
+	{
+		WriteBehindUserStore store = new WriteBehindUserStore(createBackend(plugin), plugin.blocking(), plugin.getLogger(), plugin.getConfig().getLong(WriteBehindUserStore.FLUSH_INTERVAL, 5));
+		store.start();
+		return store;
+	}
+	
+	/**
+	 * Creates the backend selected in the config, migrating existing yaml files into it if needed
+	 * @param plugin
+	 * @return
+	 */
+	private static UserStore createBackend(DiscordSync plugin)
+	{
+		String type = plugin.getConfig().getString(TYPE, "yaml");
+		if (plugin.cluster().enabled())
+		{
+			//every server in the network writes to the shared store, which a single log file can't allow
+			if (!type.equalsIgnoreCase("yaml"))
+				plugin.getLogger().log(Level.WARNING, "The \"" + type + "\" user store can't be shared between servers, using yaml.");
+			YamlUserStore store = new YamlUserStore(plugin.userDataDirectory());
+			Cluster.migrate(plugin, store);
+			return store;
+		}
+		if (type.equalsIgnoreCase("log"))
+		{
+			try
+			{
+				LogUserStore store = new LogUserStore(new File(plugin.getDataFolder(), "users.log"));
+				LogUserStore.migrate(plugin, store);
+				return store;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Could not open the user log.", e);
+			}
+		}
+		if (!type.equalsIgnoreCase("yaml"))
+			plugin.getLogger().log(Level.WARNING, "Unknown user store type \"" + type + "\", using yaml.");
+		return new YamlUserStore(plugin.userDataDirectory());
+	}
+}
\ No newline at end of file
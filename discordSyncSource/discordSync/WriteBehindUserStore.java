@@ -0,0 +1,170 @@
+package discordSync;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Delays writes to another user store and saves them in batches
+ * <p>
+ *     Saved records are held in memory and written to the underlying store together on a timer, and when the store is
+ *     closed. A record saved several times before a flush is only written once, and loads see pending records straight
+ *     away, so callers can't tell that the write hasn't happened yet.
+ * </p>
+ * <p>
+ *     Only the fields a save actually changed are kept, and they are laid over the stored record when it is written,
+ *     so saves of different fields from different copies of a user don't overwrite each other.
+ * </p>
+ */
+public class WriteBehindUserStore implements UserStore
+{
+	public static final String FLUSH_INTERVAL = "user-store.flush-interval";
+	
+	final UserStore backend;
+	final BlockingExecutor blocking;
+	final Logger logger;
+	final ConcurrentHashMap<UUID, UserRecord> pending = new ConcurrentHashMap<>();
+	final LongAdder recordsWritten = new LongAdder();
+	final ScheduledExecutorService scheduler;
+	final long flushInterval;
+	
+	/**
+	 * @param backend
+	 * @param blocking writes to the backend are made through this
+	 * @param logger
+	 * @param flushInterval time in seconds between flushes
+	 */
+	public WriteBehindUserStore(UserStore backend, BlockingExecutor blocking, Logger logger, long flushInterval)
+	{
+		this.backend = backend;
+		this.blocking = blocking;
+		this.logger = logger;
+		this.flushInterval = Math.max(1, flushInterval);
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DiscordSync-UserFlush");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Starts flushing pending records on a timer
+	 */
+	public void start()
+	{
+		scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.SECONDS);
+	}
+	
+	@Override
+	public UserRecord load(UUID minecraftUUID)
+	{
+		UserRecord changes = pending.get(minecraftUUID);
+		if (changes == null)
+			return backend.load(minecraftUUID);
+		//no need to read the stored record if nothing is left of it
+		UserRecord record = changes.over(changes.isFullyChanged() ? null : backend.load(minecraftUUID));
+		record.markClean();
+		return record;
+	}
+	
+	@Override
+	public void save(UserRecord record)
+	{
+		pending.merge(record.minecraftUUID, record.changes(), (older, newer) -> newer.over(older));
+	}
+	
+	@Override
+	public void saveAll(Collection<UserRecord> records)
+	{
+		for (UserRecord record : records)
+			save(record);
+	}
+	
+	@Override
+	public void forEach(Consumer<UserRecord> consumer)
+	{
+		//changes waiting to be written are laid over what the backend currently has
+		Map<UUID, UserRecord> snapshot = new HashMap<>(pending);
+		backend.forEach(record ->
+		{
+			UserRecord changes = snapshot.remove(record.minecraftUUID);
+			consumer.accept(changes != null ? changes.over(record).copy() : record);
+		});
+		for (UserRecord changes : snapshot.values())
+			consumer.accept(changes.copy());
+	}
+	
+	/**
+	 * Writes every pending record to the underlying store
+	 */
+	public synchronized void flush()
+	{
+		if (pending.isEmpty())
+			return;
+		ArrayList<UserRecord> batch = new ArrayList<>(pending.values());
+		//if this fails everything stays pending, so the next flush tries again
+		blocking.call(BlockingExecutor.Kind.STORAGE, () ->
+		{
+			//read what is stored right before writing, so changes made elsewhere in the meantime, such as by another
+			//server in the network, are kept
+			ArrayList<UserRecord> records = new ArrayList<>(batch.size());
+			for (UserRecord changes : batch)
+				records.add(changes.isFullyChanged() ? changes.copy() : changes.over(backend.load(changes.minecraftUUID)).copy());
+			backend.saveAll(records);
+			return null;
+		});
+		recordsWritten.add(batch.size());
+		//only forget records that haven't been saved again while we were writing
+		for (UserRecord record : batch)
+			pending.remove(record.minecraftUUID, record);
+	}
+	
+	private void flushQuietly()
+	{
+		try
+		{
+			flush();
+		}
+		catch (RuntimeException exception)
+		{
+			logger.log(Level.WARNING, "Failed to save " + pending.size() + " users, will try again.", exception);
+		}
+	}
+	
+	/**
+	 * Returns the number of records waiting to be written
+	 * @return
+	 */
+	public int pendingCount()
+	{
+		return pending.size();
+	}
+	
+	/**
+	 * Returns the number of records written to the underlying store
+	 * @return
+	 */
+	public long recordsWritten()
+	{
+		return recordsWritten.sum();
+	}
+	
+	@Override
+	public void close()
+	{
+		scheduler.shutdown();
+		try
+		{
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		backend.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,121 @@
+package discordSync;
+
+import org.bukkit.configuration.file.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Stores each user in their own yaml file in the userData directory
+ * <p>
+ *     This is the original storage layout, each file is named after the user's minecraft UUID.
+ * </p>
+ */
+public class YamlUserStore implements UserStore
+{
+	final File directory;
+	
+	public YamlUserStore(File directory)
+	{
+		this.directory = directory;
+		if (!directory.isDirectory())
+			directory.mkdirs();
+	}
+	
+	/**
+	 * Get the file the given user's data is stored in
+	 * @param minecraftUUID
+	 * @return
+	 */
+	public File dataFile(UUID minecraftUUID)
+	{
+		return new File(directory, minecraftUUID + ".txt");
+	}
+	
+	@Override
+	public UserRecord load(UUID minecraftUUID)
+	{
+		File file = dataFile(minecraftUUID);
+		if (!file.exists())
+			return null;
+		return read(minecraftUUID, YamlConfiguration.loadConfiguration(file));
+	}
+	
+	@Override
+	public void save(UserRecord record)
+	{
+		YamlConfiguration data = new YamlConfiguration();
+		data.set(User.DISCORD_UUID, record.discordID);
+		data.set(User.LAST_SEEN_MINECRAFT_NAME, record.lastSeenName);
+		File file = dataFile(record.minecraftUUID);
+		File temporaryFile = new File(directory, record.minecraftUUID + ".tmp");
+		try
+		{
+			//write to a separate file first so a crash mid-write can't leave a half written user file behind
+			Files.writeString(temporaryFile.toPath(), data.saveToString(), StandardCharsets.UTF_8);
+			try
+			{
+				Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	@Override
+	public void forEach(Consumer<UserRecord> consumer)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+		{
+			UUID minecraftUUID = uuidOf(file);
+			if (minecraftUUID != null)
+				consumer.accept(read(minecraftUUID, YamlConfiguration.loadConfiguration(file)));
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		
+	}
+	
+	/**
+	 * Gets the UUID of the user a file belongs to
+	 * <p>
+	 *     Returns null if the file isn't a user data file.
+	 * </p>
+	 * @param file
+	 * @return
+	 */
+	static UUID uuidOf(File file)
+	{
+		String fileName = file.getName();
+		if (!fileName.endsWith(".txt"))
+			return null;
+		try
+		{
+			return UUID.fromString(fileName.substring(0, fileName.length() - 4));
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+	
+	private static UserRecord read(UUID minecraftUUID, YamlConfiguration data)
+	{
+		return new UserRecord(minecraftUUID, data.getLong(User.DISCORD_UUID, 0), data.getString(User.LAST_SEEN_MINECRAFT_NAME, User.NO_NAME));
+	}
+}
\ No newline at end of file